@@ -0,0 +1,78 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.davidgreco.graphbase.blueprints;
+
+import com.tinkerpop.blueprints.pgm.Edge;
+import com.tinkerpop.blueprints.pgm.Vertex;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+//addEdge throughput on a single hub vertex, run with -t 1, 2, 4... to get the contention
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class AddEdgeContentionBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Cluster {
+
+        HBaseTestingUtility testUtil;
+        HBaseGraph graph;
+        Object hubId;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            testUtil = new HBaseTestingUtility();
+            testUtil.startMiniCluster();
+            String port = testUtil.getConfiguration().get("hbase.zookeeper.property.clientPort");
+            graph = new HBaseGraph("localhost", port, "contention");
+            hubId = graph.addVertex(null).getId();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            graph.shutdown();
+            testUtil.shutdownMiniCluster();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Writer {
+
+        Vertex hub;
+        long edges;
+
+        @Setup(Level.Trial)
+        public void setUp(Cluster cluster) {
+            hub = cluster.graph.getVertex(cluster.hubId);
+        }
+    }
+
+    @Benchmark
+    public Edge addEdge(Cluster cluster, Writer writer) {
+        Vertex other = cluster.graph.addVertex(null);
+        if (writer.edges++ % 2 == 0)
+            return cluster.graph.addEdge(null, writer.hub, other, "out");
+        else
+            return cluster.graph.addEdge(null, other, writer.hub, "in");
+    }
+
+}
@@ -0,0 +1,128 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.davidgreco.graphbase.blueprints;
+
+import com.tinkerpop.blueprints.pgm.Vertex;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+//Table size with the default and the compact schema, reported as counters next to the load time
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class CompactSchemaBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Cluster {
+
+        @Param({"default", "compact"})
+        public String schema;
+
+        @Param({"2000"})
+        public int vertexes;
+
+        @Param({"10"})
+        public int edgesPerVertex;
+
+        HBaseTestingUtility testUtil;
+        int graphs;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            testUtil = new HBaseTestingUtility();
+            testUtil.startMiniCluster();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            testUtil.shutdownMiniCluster();
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Size {
+
+        public long cells;
+        public long bytes;
+        public double bytesPerEdge;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            cells = 0;
+            bytes = 0;
+            bytesPerEdge = 0;
+        }
+    }
+
+    @Benchmark
+    public void load(Cluster cluster, Size size) throws Exception {
+        Configuration conf = new Configuration(cluster.testUtil.getConfiguration());
+        conf.set(HBaseGraph.SCHEMA, cluster.schema);
+        HBaseGraph graph = new HBaseGraph(conf, "social_network_graph_" + cluster.schema + cluster.graphs++);
+        try {
+            Random random = new Random(0);
+            BulkLoadSession session = graph.startBulkLoad();
+            List<Vertex> vertexes = new ArrayList<Vertex>();
+            for (int i = 0; i < cluster.vertexes; i++) {
+                Map<String, Object> properties = new HashMap<String, Object>();
+                properties.put("name", "vertex" + i);
+                properties.put("age", random.nextInt(100));
+                vertexes.add(session.addVertex(properties));
+            }
+            long edgeCount = 0;
+            for (Vertex vertex : vertexes) {
+                for (int i = 0; i < cluster.edgesPerVertex; i++) {
+                    Map<String, Object> properties = new HashMap<String, Object>();
+                    properties.put("weight", random.nextDouble());
+                    properties.put("created", System.currentTimeMillis());
+                    session.addEdge(vertex, vertexes.get(random.nextInt(cluster.vertexes)), "knows", properties);
+                    edgeCount++;
+                }
+            }
+            session.close();
+
+            Scan scan = new Scan();
+            scan.setCaching(1000);
+            ResultScanner scanner = graph.handle.vtable().getScanner(scan);
+            try {
+                for (Result result : scanner) {
+                    for (KeyValue kv : result.raw()) {
+                        size.cells++;
+                        size.bytes += kv.getLength();
+                    }
+                }
+            } finally {
+                scanner.close();
+            }
+            size.bytesPerEdge = (double) size.bytes / edgeCount;
+        } finally {
+            graph.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.davidgreco.graphbase.blueprints;
+
+import com.tinkerpop.blueprints.pgm.CloseableSequence;
+import com.tinkerpop.blueprints.pgm.Edge;
+import com.tinkerpop.blueprints.pgm.Index;
+import com.tinkerpop.blueprints.pgm.Vertex;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Throughput of one graph shared by the benchmark threads, run with -t 1, 2, 4... to get the speedup
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ConcurrentGraphBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Cluster {
+
+        HBaseTestingUtility testUtil;
+        HBaseGraph graph;
+        Index<Vertex> index;
+        final AtomicInteger threads = new AtomicInteger();
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            testUtil = new HBaseTestingUtility();
+            testUtil.startMiniCluster();
+            String port = testUtil.getConfiguration().get("hbase.zookeeper.property.clientPort");
+            graph = new HBaseGraph("localhost", port, "concurrent");
+            index = graph.createAutomaticIndex("concurrentvertexes", Vertex.class, Collections.singleton("name"));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            graph.shutdown();
+            testUtil.shutdownMiniCluster();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Worker {
+
+        final List<Vertex> vertexes = new ArrayList<Vertex>();
+        Random random;
+        int thread;
+        int operations;
+
+        @Setup(Level.Trial)
+        public void setUp(Cluster cluster) {
+            thread = cluster.threads.getAndIncrement();
+            random = new Random(thread);
+        }
+    }
+
+    @Benchmark
+    public void mixed(Cluster cluster, Worker worker, Blackhole blackhole) {
+        String name = worker.thread + "-" + worker.operations++;
+        Vertex vertex = cluster.graph.addVertex(null);
+        vertex.setProperty("name", name);
+        if (!worker.vertexes.isEmpty())
+            cluster.graph.addEdge(null, vertex, worker.vertexes.get(worker.random.nextInt(worker.vertexes.size())), "link");
+        worker.vertexes.add(vertex);
+
+        Vertex read = cluster.graph.getVertex(worker.vertexes.get(worker.random.nextInt(worker.vertexes.size())).getId());
+        for (Edge edge : read.getOutEdges()) {
+            blackhole.consume(edge.getInVertex());
+        }
+        CloseableSequence<Vertex> found = cluster.index.get("name", name);
+        try {
+            if (!found.hasNext())
+                throw new IllegalStateException("Missing index entry " + name);
+        } finally {
+            found.close();
+        }
+    }
+
+}
@@ -0,0 +1,146 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.davidgreco.graphbase.blueprints;
+
+import com.tinkerpop.blueprints.pgm.CloseableSequence;
+import com.tinkerpop.blueprints.pgm.Edge;
+import com.tinkerpop.blueprints.pgm.Index;
+import com.tinkerpop.blueprints.pgm.Vertex;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//Against a mini cluster started once per trial
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class GraphBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Cluster {
+
+        @Param({"default", "compact"})
+        public String schema;
+
+        @Param({"1000"})
+        public int vertexes;
+
+        @Param({"10"})
+        public int edgesPerVertex;
+
+        HBaseTestingUtility testUtil;
+        HBaseGraph graph;
+        Index<Vertex> index;
+        Object[] ids;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            testUtil = new HBaseTestingUtility();
+            testUtil.startMiniCluster();
+            Configuration conf = new Configuration(testUtil.getConfiguration());
+            conf.set(HBaseGraph.SCHEMA, schema);
+            graph = new HBaseGraph(conf, "benchmark" + schema);
+            index = graph.createAutomaticIndex("names", Vertex.class, Collections.singleton("name"));
+
+            BulkLoadSession session = graph.startBulkLoad();
+            Vertex[] loaded = new Vertex[vertexes];
+            ids = new Object[vertexes];
+            for (int i = 0; i < vertexes; i++) {
+                Map<String, Object> properties = new HashMap<String, Object>();
+                properties.put("name", "v" + i);
+                loaded[i] = session.addVertex(properties);
+                ids[i] = loaded[i].getId();
+            }
+            Random random = new Random(0);
+            for (int i = 0; i < vertexes; i++) {
+                for (int j = 0; j < edgesPerVertex; j++) {
+                    session.addEdge(loaded[i], loaded[random.nextInt(vertexes)], "knows");
+                }
+            }
+            session.close();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            graph.shutdown();
+            testUtil.shutdownMiniCluster();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Picker {
+
+        final Random random = new Random();
+        long counter;
+
+        int next(Cluster cluster) {
+            return random.nextInt(cluster.vertexes);
+        }
+    }
+
+    @Benchmark
+    public Vertex addVertex(Cluster cluster) {
+        return cluster.graph.addVertex(null);
+    }
+
+    @Benchmark
+    public Edge addEdge(Cluster cluster, Picker picker) {
+        Vertex out = cluster.graph.getVertex(cluster.ids[picker.next(cluster)]);
+        Vertex in = cluster.graph.getVertex(cluster.ids[picker.next(cluster)]);
+        return cluster.graph.addEdge(null, out, in, "likes");
+    }
+
+    @Benchmark
+    public void setProperty(Cluster cluster, Picker picker) {
+        Vertex vertex = cluster.graph.getVertex(cluster.ids[picker.next(cluster)]);
+        vertex.setProperty("visits", picker.counter++);
+    }
+
+    @Benchmark
+    public int getOutEdges(Cluster cluster, Picker picker) {
+        Vertex vertex = cluster.graph.getVertex(cluster.ids[picker.next(cluster)]);
+        int count = 0;
+        for (Edge edge : vertex.getOutEdges("knows")) {
+            count += edge.getInVertex() == null ? 0 : 1;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int indexGet(Cluster cluster, Picker picker) {
+        CloseableSequence<Vertex> result = cluster.index.get("name", "v" + picker.next(cluster));
+        int count = 0;
+        try {
+            while (result.hasNext()) {
+                result.next();
+                count++;
+            }
+        } finally {
+            result.close();
+        }
+        return count;
+    }
+
+}
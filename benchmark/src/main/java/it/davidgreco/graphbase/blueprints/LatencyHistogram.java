@@ -0,0 +1,89 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.davidgreco.graphbase.blueprints;
+
+//Latencies in nanoseconds, relative error under 1%
+public class LatencyHistogram {
+
+    private static final int subBucketBits = 7;
+    private static final int subBuckets = 1 << subBucketBits;
+
+    private final long[] counts = new long[(64 - subBucketBits + 1) * subBuckets];
+    private long count;
+    private long sum;
+    private long max;
+
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts[getIndex(value)]++;
+        count++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    //The highest value of the bucket holding the given fraction, 0.99 for p99
+    public long getPercentile(double fraction) {
+        if (count == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(getHighestValue(i), max);
+        }
+        return max;
+    }
+
+    private static int getIndex(long value) {
+        if (value < subBuckets)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - subBucketBits;
+        return (shift + 1) * subBuckets + (int) ((value >>> shift) - subBuckets);
+    }
+
+    private static long getHighestValue(int index) {
+        if (index < subBuckets)
+            return index;
+        int shift = index / subBuckets - 1;
+        long mantissa = index % subBuckets + subBuckets;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+}
@@ -0,0 +1,70 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.davidgreco.graphbase.blueprints;
+
+import java.util.Random;
+
+//Grown by preferential attachment, the in-degrees follow a power law
+public class PowerLawGraph {
+
+    private final int vertexes;
+    private final int[] endpoints;
+
+    public PowerLawGraph(int vertexes, int degree, long seed) {
+        if (vertexes < 2 || degree < 1)
+            throw new IllegalArgumentException("A graph needs at least 2 vertexes and a degree of 1");
+        this.vertexes = vertexes;
+        long edges = 0;
+        for (int i = 1; i < vertexes; i++) {
+            edges += Math.min(i, degree);
+        }
+        if (edges * 2 > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Too many edges: " + edges);
+        this.endpoints = new int[(int) edges * 2];
+        Random random = new Random(seed);
+        int filled = 0;
+        for (int i = 1; i < vertexes; i++) {
+            for (int j = 0; j < Math.min(i, degree); j++) {
+                int target = filled == 0 ? 0 : endpoints[random.nextInt(filled)];
+                endpoints[filled++] = i;
+                endpoints[filled++] = target;
+            }
+        }
+    }
+
+    public int getVertexCount() {
+        return vertexes;
+    }
+
+    public int getEdgeCount() {
+        return endpoints.length / 2;
+    }
+
+    public int getSource(int edge) {
+        return endpoints[edge * 2];
+    }
+
+    public int getTarget(int edge) {
+        return endpoints[edge * 2 + 1];
+    }
+
+    //Picked in proportion to the degree, like the targets of a real workload
+    public int pickVertex(Random random) {
+        return endpoints[random.nextInt(endpoints.length)];
+    }
+
+}
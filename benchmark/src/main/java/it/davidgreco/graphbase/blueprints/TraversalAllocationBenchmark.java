@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.davidgreco.graphbase.blueprints;
+
+import com.tinkerpop.blueprints.pgm.Edge;
+import com.tinkerpop.blueprints.pgm.Vertex;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//Out edges traversed from one vertex, -prof gc gives the bytes allocated per vertex of edges/vertexes edges on average
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TraversalAllocationBenchmark {
+
+    private static final String[] labels = {"knows", "follows", "likes"};
+
+    @State(Scope.Benchmark)
+    public static class Cluster {
+
+        @Param({"100000"})
+        public int vertexes;
+
+        @Param({"1000000"})
+        public int edges;
+
+        HBaseTestingUtility testUtil;
+        HBaseGraph graph;
+        Object[] ids;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            testUtil = new HBaseTestingUtility();
+            testUtil.startMiniCluster();
+            String port = testUtil.getConfiguration().get("hbase.zookeeper.property.clientPort");
+            graph = new HBaseGraph("localhost", port, "traversal");
+            Random random = new Random(0);
+            BulkLoadSession session = graph.startBulkLoad();
+            Vertex[] loaded = new Vertex[vertexes];
+            ids = new Object[vertexes];
+            for (int i = 0; i < vertexes; i++) {
+                loaded[i] = session.addVertex();
+                ids[i] = loaded[i].getId();
+            }
+            for (int i = 0; i < edges; i++) {
+                session.addEdge(loaded[random.nextInt(vertexes)], loaded[random.nextInt(vertexes)], labels[i % labels.length]);
+            }
+            session.close();
+        }
+
+        //Every iteration starts from a cold element cache
+        @Setup(Level.Iteration)
+        public void invalidate() {
+            graph.getElementCache().invalidateAll();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            graph.shutdown();
+            testUtil.shutdownMiniCluster();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Picker {
+
+        final Random random = new Random();
+    }
+
+    @Benchmark
+    public void traverse(Cluster cluster, Picker picker, Blackhole blackhole) {
+        int position = picker.random.nextInt(cluster.vertexes);
+        Vertex vertex = cluster.graph.getVertex(cluster.ids[position]);
+        for (Edge edge : vertex.getOutEdges(labels[position % labels.length])) {
+            blackhole.consume(edge.getLabel());
+            blackhole.consume(edge.getInVertex());
+        }
+        for (Edge edge : vertex.getOutEdges()) {
+            blackhole.consume(edge.getLabel());
+            blackhole.consume(edge.getInVertex());
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.davidgreco.graphbase.blueprints;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+//The typed value codec of Util against the one built on Bytes.add and Bytes.tail, -prof gc gives the bytes per operation
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TypedValueCodecBenchmark {
+
+    private static final byte string_type = 1;
+    private static final byte long_type = 2;
+    private static final byte double_type = 6;
+
+    @State(Scope.Thread)
+    public static class Values {
+
+        @Param({"string", "long", "double"})
+        public String type;
+
+        Object value;
+        KeyValue kv;
+
+        @Setup
+        public void setUp() {
+            if (type.equals("string"))
+                value = "a property value";
+            else if (type.equals("long"))
+                value = 1234567890123L;
+            else
+                value = 3.14159d;
+            kv = new KeyValue(Bytes.toBytes("row"), Bytes.toBytes("family"), Bytes.toBytes("key"), Util.typedObjectToBytes(value));
+        }
+    }
+
+    @Benchmark
+    public byte[] encodeLegacy(Values values) {
+        return legacyTypedObjectToBytes(values.value);
+    }
+
+    @Benchmark
+    public byte[] encode(Values values) {
+        return Util.typedObjectToBytes(values.value);
+    }
+
+    @Benchmark
+    public Object decodeLegacy(Values values) {
+        return legacyBytesToTypedObject(values.kv.getValue());
+    }
+
+    @Benchmark
+    public Object decode(Values values) {
+        return Util.bytesToTypedObject(values.kv);
+    }
+
+    private static byte[] legacyTypedObjectToBytes(Object obj) {
+        byte[] otypeb = new byte[1];
+        if (obj instanceof String) {
+            otypeb[0] = string_type;
+            return Bytes.add(otypeb, Bytes.toBytes((String) obj));
+        } else if (obj instanceof Long) {
+            otypeb[0] = long_type;
+            return Bytes.add(otypeb, Bytes.toBytes((Long) obj));
+        } else {
+            otypeb[0] = double_type;
+            return Bytes.add(otypeb, Bytes.toBytes((Double) obj));
+        }
+    }
+
+    private static Object legacyBytesToTypedObject(byte[] bvalue) {
+        byte[] vbuffer = Bytes.tail(bvalue, bvalue.length - 1);
+        switch (bvalue[0]) {
+            case string_type:
+                return Bytes.toString(vbuffer);
+            case long_type:
+                return Bytes.toLong(vbuffer);
+            default:
+                return Bytes.toDouble(vbuffer);
+        }
+    }
+
+}
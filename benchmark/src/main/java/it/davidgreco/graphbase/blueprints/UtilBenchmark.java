@@ -0,0 +1,133 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.davidgreco.graphbase.blueprints;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UtilBenchmark {
+
+    private final String stringValue = "a property value";
+    private final Long longValue = 1234567890123L;
+    private final Double doubleValue = 3.14159d;
+
+    private KeyValue stringKv;
+    private KeyValue longKv;
+    private byte[] varint;
+    private byte[] vertexId;
+    private byte[] edgeLocalId;
+    private byte[] edgeId;
+    private byte[] adjacencyQualifier;
+    private byte[] inEdgeValue;
+
+    @Setup
+    public void setUp() {
+        stringKv = new KeyValue(Bytes.toBytes("row"), Bytes.toBytes("p"), Bytes.toBytes("key"), Util.typedObjectToBytes(stringValue));
+        longKv = new KeyValue(Bytes.toBytes("row"), Bytes.toBytes("p"), Bytes.toBytes("key"), Util.typedObjectToBytes(longValue));
+        varint = Util.toVarint(300);
+        vertexId = Util.generateVertexId();
+        edgeLocalId = Util.generateEdgeLocalId();
+        edgeId = Util.generateEdgeId(vertexId, edgeLocalId);
+        adjacencyQualifier = Util.generateAdjacencyQualifier("knows", edgeLocalId);
+        inEdgeValue = Util.generateInEdgeValue(edgeId, "knows");
+    }
+
+    @Benchmark
+    public byte[] encodeString() {
+        return Util.typedObjectToBytes(stringValue);
+    }
+
+    @Benchmark
+    public byte[] encodeLong() {
+        return Util.typedObjectToBytes(longValue);
+    }
+
+    @Benchmark
+    public byte[] encodeDouble() {
+        return Util.typedObjectToBytes(doubleValue);
+    }
+
+    @Benchmark
+    public Object decodeString() {
+        return Util.bytesToTypedObject(stringKv);
+    }
+
+    @Benchmark
+    public long decodeLong() {
+        return Util.getTypedLong(longKv.getBuffer(), longKv.getValueOffset(), longKv.getValueLength());
+    }
+
+    @Benchmark
+    public byte[] encodeVarint() {
+        return Util.toVarint(300);
+    }
+
+    @Benchmark
+    public long decodeVarint() {
+        return Util.fromVarint(varint);
+    }
+
+    @Benchmark
+    public byte[] generateTimeVertexId() {
+        return Util.generateVertexId();
+    }
+
+    @Benchmark
+    public byte[] generateSaltedVertexId() {
+        return Util.generateSaltedVertexId(16);
+    }
+
+    @Benchmark
+    public byte[] generateHashedVertexId() {
+        return Util.generateHashedVertexId();
+    }
+
+    @Benchmark
+    public byte[] generateEdgeId() {
+        return Util.generateEdgeId(vertexId, Util.generateEdgeLocalId());
+    }
+
+    @Benchmark
+    public byte[] parseEdgeId() {
+        return Util.getEdgeIdStruct(edgeId).edgeLocalId;
+    }
+
+    @Benchmark
+    public byte[] generateAdjacencyQualifier() {
+        return Util.generateAdjacencyQualifier("knows", edgeLocalId);
+    }
+
+    @Benchmark
+    public String parseAdjacencyQualifier() {
+        return Util.getAdjacencyStruct(adjacencyQualifier).label;
+    }
+
+    @Benchmark
+    public String parseInEdgeValue() {
+        return Util.getInEdgeLabel(inEdgeValue);
+    }
+
+}
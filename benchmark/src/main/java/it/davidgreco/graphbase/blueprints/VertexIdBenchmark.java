@@ -0,0 +1,108 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.davidgreco.graphbase.blueprints;
+
+import com.tinkerpop.blueprints.pgm.Vertex;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.HServerAddress;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+//Vertex ingest throughput of the vertex id generators, run with -t to write from several threads
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class VertexIdBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Cluster {
+
+        @Param({"time", "salted", "hashed"})
+        public String ids;
+
+        @Param({"3"})
+        public int regionServers;
+
+        @Param({"16"})
+        public int regions;
+
+        HBaseTestingUtility testUtil;
+        HBaseGraph graph;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            testUtil = new HBaseTestingUtility();
+            testUtil.startMiniCluster(regionServers);
+            Configuration conf = new Configuration(testUtil.getConfiguration());
+            conf.set(HBaseGraph.VERTEX_IDS, ids);
+            conf.setInt(HBaseGraph.VERTEX_REGIONS, regions);
+            graph = new HBaseGraph(conf, "ids" + ids);
+        }
+
+        //The vertexes written on each region server, to compare the spread of the generators
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            HTable table = graph.handle.vtable();
+            Map<String, Integer> perServer = new TreeMap<String, Integer>();
+            Scan scan = new Scan();
+            scan.setFilter(new FirstKeyOnlyFilter());
+            scan.setCaching(1000);
+            ResultScanner scanner = table.getScanner(scan);
+            try {
+                for (Result result : scanner) {
+                    HServerAddress server = table.getRegionLocation(result.getRow()).getServerAddress();
+                    Integer count = perServer.get(server.toString());
+                    perServer.put(server.toString(), count == null ? 1 : count + 1);
+                }
+            } finally {
+                scanner.close();
+            }
+            System.out.println(String.format("ids=%s regions=%d servers=%s", ids, table.getRegionsInfo().size(), perServer));
+            graph.shutdown();
+            testUtil.shutdownMiniCluster();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Writer {
+
+        Vertex previous;
+        int position;
+    }
+
+    @Benchmark
+    public Vertex addVertex(Cluster cluster, Writer writer) {
+        Vertex vertex = cluster.graph.addVertex(null);
+        vertex.setProperty("position", writer.position++);
+        if (writer.previous != null)
+            cluster.graph.addEdge(null, writer.previous, vertex, "next");
+        writer.previous = vertex;
+        return vertex;
+    }
+
+}
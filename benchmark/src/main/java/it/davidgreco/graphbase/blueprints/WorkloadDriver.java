@@ -0,0 +1,308 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.davidgreco.graphbase.blueprints;
+
+import com.tinkerpop.blueprints.pgm.CloseableSequence;
+import com.tinkerpop.blueprints.pgm.Edge;
+import com.tinkerpop.blueprints.pgm.Index;
+import com.tinkerpop.blueprints.pgm.Vertex;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+//Usage: WorkloadDriver [vertexes=100000] [degree=10] [threads=16] [seconds=60] [warmup=10] [mix=60:20:10:10]
+public class WorkloadDriver {
+
+    private static final String[] operations = {"read", "write", "traversal", "index"};
+
+    private final HBaseGraph graph;
+    private final PowerLawGraph synthetic;
+    private final Index<Vertex> names;
+    private final Object[] ids;
+    private final int[] mix;
+    private final int mixTotal;
+    private final int maxFollowed;
+
+    WorkloadDriver(HBaseGraph graph, PowerLawGraph synthetic, int[] mix, int maxFollowed) {
+        this.graph = graph;
+        this.synthetic = synthetic;
+        this.mix = mix;
+        int total = 0;
+        for (int weight : mix) {
+            total += weight;
+        }
+        if (mix.length != operations.length || total <= 0)
+            throw new IllegalArgumentException("The mix needs a weight for each of " + Arrays.toString(operations));
+        this.mixTotal = total;
+        this.maxFollowed = maxFollowed;
+        this.ids = new Object[synthetic.getVertexCount()];
+        Index<Vertex> index = graph.getIndex("names", Vertex.class);
+        if (index == null)
+            index = graph.createAutomaticIndex("names", Vertex.class, Collections.singleton("name"));
+        this.names = index;
+    }
+
+    long load() {
+        long start = System.currentTimeMillis();
+        BulkLoadSession session = graph.startBulkLoad();
+        Vertex[] vertexes = new Vertex[synthetic.getVertexCount()];
+        for (int i = 0; i < vertexes.length; i++) {
+            Map<String, Object> properties = new HashMap<String, Object>();
+            properties.put("name", getName(i));
+            vertexes[i] = session.addVertex(properties);
+            ids[i] = vertexes[i].getId();
+        }
+        for (int i = 0; i < synthetic.getEdgeCount(); i++) {
+            session.addEdge(vertexes[synthetic.getSource(i)], vertexes[synthetic.getTarget(i)], "follows");
+        }
+        session.close();
+        graph.flushIndices();
+        return System.currentTimeMillis() - start;
+    }
+
+    //The warmup latencies are discarded
+    LatencyHistogram[] run(int threads, final long warmupMillis, final long millis, final long seed, final long[] errors) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<LatencyHistogram[]>> futures = new ArrayList<Future<LatencyHistogram[]>>();
+        final long start = System.currentTimeMillis();
+        for (int t = 0; t < threads; t++) {
+            final Random random = new Random(seed + t + 1);
+            futures.add(pool.submit(new Callable<LatencyHistogram[]>() {
+                @Override
+                public LatencyHistogram[] call() throws Exception {
+                    LatencyHistogram[] histograms = createHistograms();
+                    long measureFrom = start + warmupMillis;
+                    long end = measureFrom + millis;
+                    long now;
+                    while ((now = System.currentTimeMillis()) < end) {
+                        int operation = pickOperation(random);
+                        long before = System.nanoTime();
+                        try {
+                            execute(operation, random);
+                        } catch (RuntimeException e) {
+                            if (now >= measureFrom) {
+                                synchronized (errors) {
+                                    errors[operation]++;
+                                }
+                            }
+                            continue;
+                        }
+                        long latency = System.nanoTime() - before;
+                        if (now >= measureFrom)
+                            histograms[operation].record(latency);
+                    }
+                    return histograms;
+                }
+            }));
+        }
+        LatencyHistogram[] histograms = createHistograms();
+        for (Future<LatencyHistogram[]> future : futures) {
+            LatencyHistogram[] threadHistograms = future.get();
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i].add(threadHistograms[i]);
+            }
+        }
+        pool.shutdown();
+        return histograms;
+    }
+
+    private int pickOperation(Random random) {
+        int pick = random.nextInt(mixTotal);
+        for (int i = 0; i < mix.length; i++) {
+            pick -= mix[i];
+            if (pick < 0)
+                return i;
+        }
+        throw new IllegalStateException();
+    }
+
+    private void execute(int operation, Random random) {
+        switch (operation) {
+            case 0:
+                read(random);
+                break;
+            case 1:
+                write(random);
+                break;
+            case 2:
+                traverse(random);
+                break;
+            default:
+                lookup(random);
+        }
+    }
+
+    private Object read(Random random) {
+        return getVertex(synthetic.pickVertex(random)).getProperty("name");
+    }
+
+    private void write(Random random) {
+        Vertex follower = getVertex(random.nextInt(ids.length));
+        Vertex followed = getVertex(synthetic.pickVertex(random));
+        follower.setProperty("active", System.currentTimeMillis());
+        graph.addEdge(null, follower, followed, "follows");
+    }
+
+    private int traverse(Random random) {
+        Vertex vertex = getVertex(synthetic.pickVertex(random));
+        Set<Object> reached = new HashSet<Object>();
+        int followed = 0;
+        for (Edge edge : vertex.getOutEdges("follows")) {
+            if (followed++ == maxFollowed)
+                break;
+            for (Edge next : edge.getInVertex().getOutEdges("follows")) {
+                reached.add(next.getInVertex());
+            }
+        }
+        return reached.size();
+    }
+
+    private int lookup(Random random) {
+        CloseableSequence<Vertex> result = names.get("name", getName(synthetic.pickVertex(random)));
+        int count = 0;
+        try {
+            while (result.hasNext()) {
+                result.next();
+                count++;
+            }
+        } finally {
+            result.close();
+        }
+        if (count == 0)
+            throw new RuntimeException("The index has no vertex for the name");
+        return count;
+    }
+
+    private Vertex getVertex(int i) {
+        Vertex vertex = graph.getVertex(ids[i]);
+        if (vertex == null)
+            throw new RuntimeException("The vertex " + i + " is missing");
+        return vertex;
+    }
+
+    private static String getName(int i) {
+        return "user" + i;
+    }
+
+    private static LatencyHistogram[] createHistograms() {
+        LatencyHistogram[] histograms = new LatencyHistogram[operations.length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        return histograms;
+    }
+
+    static void report(LatencyHistogram[] histograms, long[] errors, long millis) {
+        System.out.println(String.format("%-10s %10s %10s %10s %10s %10s %10s %8s",
+                "operation", "count", "ops/s", "p50 ms", "p99 ms", "p999 ms", "max ms", "errors"));
+        LatencyHistogram total = new LatencyHistogram();
+        long totalErrors = 0;
+        for (int i = 0; i < histograms.length; i++) {
+            print(operations[i], histograms[i], errors[i], millis);
+            total.add(histograms[i]);
+            totalErrors += errors[i];
+        }
+        print("total", total, totalErrors, millis);
+    }
+
+    private static void print(String name, LatencyHistogram histogram, long errors, long millis) {
+        System.out.println(String.format("%-10s %10d %10.1f %10.3f %10.3f %10.3f %10.3f %8d",
+                name, histogram.getCount(), histogram.getCount() * 1000.0 / millis,
+                histogram.getPercentile(0.5) / 1e6, histogram.getPercentile(0.99) / 1e6,
+                histogram.getPercentile(0.999) / 1e6, histogram.getMax() / 1e6, errors));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator <= 0)
+                throw new IllegalArgumentException("Expected key=value: " + arg);
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        int vertexes = getInt(options, "vertexes", 100000);
+        int degree = getInt(options, "degree", 10);
+        int threads = getInt(options, "threads", 16);
+        int seconds = getInt(options, "seconds", 60);
+        int warmup = getInt(options, "warmup", 10);
+        int maxFollowed = getInt(options, "maxfollowed", 100);
+        long seed = Long.parseLong(get(options, "seed", "0"));
+        String[] weights = get(options, "mix", "60:20:10:10").split(":");
+        int[] mix = new int[weights.length];
+        for (int i = 0; i < weights.length; i++) {
+            mix[i] = Integer.parseInt(weights[i]);
+        }
+
+        HBaseTestingUtility testUtil = null;
+        Configuration conf;
+        if (options.containsKey("quorum")) {
+            conf = HBaseConfiguration.create();
+            conf.set("hbase.zookeeper.quorum", options.get("quorum"));
+            conf.set("hbase.zookeeper.property.clientPort", get(options, "port", "2181"));
+        } else {
+            testUtil = new HBaseTestingUtility();
+            testUtil.startMiniCluster(getInt(options, "regionservers", 1));
+            conf = new Configuration(testUtil.getConfiguration());
+        }
+        for (Map.Entry<String, String> e : options.entrySet()) {
+            if (e.getKey().startsWith("graphbase.") || e.getKey().startsWith("hbase."))
+                conf.set(e.getKey(), e.getValue());
+        }
+
+        try {
+            long generateStart = System.currentTimeMillis();
+            PowerLawGraph synthetic = new PowerLawGraph(vertexes, degree, seed);
+            System.out.println(String.format("generated vertexes=%d edges=%d elapsed=%dms", synthetic.getVertexCount(),
+                    synthetic.getEdgeCount(), System.currentTimeMillis() - generateStart));
+
+            HBaseGraph graph = new HBaseGraph(conf, get(options, "name", "workload"));
+            try {
+                WorkloadDriver driver = new WorkloadDriver(graph, synthetic, mix, maxFollowed);
+                long loadMillis = driver.load();
+                long elements = (long) synthetic.getVertexCount() + synthetic.getEdgeCount();
+                System.out.println(String.format("loaded elapsed=%dms throughput=%.1f elements/s", loadMillis,
+                        elements * 1000.0 / Math.max(loadMillis, 1)));
+
+                long[] errors = new long[operations.length];
+                LatencyHistogram[] histograms = driver.run(threads, warmup * 1000L, seconds * 1000L, seed, errors);
+                System.out.println(String.format("workload threads=%d seconds=%d mix=%s", threads, seconds, get(options, "mix", "60:20:10:10")));
+                report(histograms, errors, seconds * 1000L);
+            } finally {
+                graph.shutdown();
+            }
+        } finally {
+            if (testUtil != null)
+                testUtil.shutdownMiniCluster();
+        }
+    }
+
+    private static String get(Map<String, String> options, String key, String defaultValue) {
+        String value = options.get(key);
+        return value == null ? defaultValue : value;
+    }
+
+    private static int getInt(Map<String, String> options, String key, int defaultValue) {
+        return Integer.parseInt(get(options, key, Integer.toString(defaultValue)));
+    }
+
+}
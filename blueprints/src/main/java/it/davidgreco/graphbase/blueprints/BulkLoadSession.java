@@ -0,0 +1,267 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.davidgreco.graphbase.blueprints;
+
+import com.tinkerpop.blueprints.pgm.Edge;
+import com.tinkerpop.blueprints.pgm.Element;
+import com.tinkerpop.blueprints.pgm.Index;
+import com.tinkerpop.blueprints.pgm.Vertex;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class BulkLoadSession {
+
+    private static final Log LOG = LogFactory.getLog(BulkLoadSession.class);
+    private static final int maxCountedRows = 10000;
+
+    private final HBaseGraph graph;
+    private final HBaseHelper handle;
+    private final HTable vtable;
+    private final Map<String, HTable> indexTables = new HashMap<String, HTable>();
+    private final Map<String, HBaseHelper.IndexTableStruct> countedTables = new HashMap<String, HBaseHelper.IndexTableStruct>();
+    private final Map<String, Map<byte[], Long>> indexCounts = new HashMap<String, Map<byte[], Long>>();
+    private int countedRows;
+    private final long writeBufferSize;
+    private final boolean writeToWAL;
+    private final long startTime;
+    private long vertexCount;
+    private long edgeCount;
+    private long propertyCount;
+    private boolean closed;
+
+    BulkLoadSession(HBaseGraph graph, long writeBufferSize, boolean writeToWAL) {
+        this.graph = graph;
+        this.handle = graph.handle;
+        this.writeBufferSize = writeBufferSize;
+        this.writeToWAL = writeToWAL;
+        this.vtable = openTable(handle.vtable());
+        this.startTime = System.currentTimeMillis();
+    }
+
+    public Vertex addVertex() {
+        return addVertex(Collections.<String, Object>emptyMap());
+    }
+
+    public Vertex addVertex(Map<String, Object> properties) {
+        checkOpen();
+        try {
+            byte[] id = graph.generateVertexId();
+            HBaseVertex vertex = new HBaseVertex();
+            vertex.setId(id);
+            vertex.setGraph(graph);
+            Put put = createPut(id);
+            put.add(handle.vfamilyProperties, null, null);
+            for (Map.Entry<String, Object> e : properties.entrySet()) {
+                put.add(handle.vfamilyProperties, handle.keys.getOrCreateId(e.getKey()), Util.typedObjectToBytes(e.getValue()));
+            }
+            vtable.put(put);
+            indexProperties(vertex, properties);
+            vertexCount++;
+            return vertex;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public Edge addEdge(Vertex outVertex, Vertex inVertex, String label) {
+        return addEdge(outVertex, inVertex, label, Collections.<String, Object>emptyMap());
+    }
+
+    public Edge addEdge(Vertex outVertex, Vertex inVertex, String label, Map<String, Object> properties) {
+        checkOpen();
+        try {
+            byte[] outVertexId = (byte[]) outVertex.getId();
+            byte[] inVertexId = (byte[]) inVertex.getId();
+            byte[] edgeLocalId = Util.generateEdgeLocalId();
+            byte[] edgeId = Util.generateEdgeId(outVertexId, edgeLocalId);
+            byte[] adjacencyQualifier = handle.generateAdjacencyQualifier(label, edgeLocalId);
+
+            Put outPut = createPut(outVertexId);
+            outPut.add(handle.vfamilyOutEdges, adjacencyQualifier, inVertexId);
+            outPut.add(handle.vfamilyEdgeProperties, Util.generateEdgePropertyId(handle.keys.getLabelId(), edgeLocalId), Bytes.toBytes(label));
+            for (Map.Entry<String, Object> e : properties.entrySet()) {
+                outPut.add(handle.vfamilyEdgeProperties, Util.generateEdgePropertyId(handle.keys.getOrCreateId(e.getKey()), edgeLocalId), Util.typedObjectToBytes(e.getValue()));
+            }
+            vtable.put(outPut);
+
+            Put inPut = createPut(inVertexId);
+            inPut.add(handle.vfamilyInEdges, adjacencyQualifier, Util.generateInEdgeValue(edgeId, label));
+            vtable.put(inPut);
+            graph.invalidate(outVertexId);
+            graph.invalidate(inVertexId);
+
+            HBaseEdge edge = new HBaseEdge(graph);
+            edge.setId(edgeId);
+            edge.setOutVertex((HBaseVertex) outVertex);
+            edge.setInVertex((HBaseVertex) inVertex);
+            edge.setLabel(label);
+            indexProperties(edge, properties);
+            edgeCount++;
+            return edge;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void flush() {
+        try {
+            vtable.flushCommits();
+            flushIndexTables();
+            flushCounts();
+            graph.flushIndices();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void flushIndexTables() throws IOException {
+        for (HTable table : indexTables.values()) {
+            table.flushCommits();
+        }
+    }
+
+    //One increment per index row
+    private void flushCounts() throws IOException {
+        for (Map.Entry<String, Map<byte[], Long>> e : indexCounts.entrySet()) {
+            HBaseIndex.incrementCounts(indexTables.get(e.getKey()), countedTables.get(e.getKey()), e.getValue(), 1);
+        }
+        indexCounts.clear();
+        countedRows = 0;
+    }
+
+    public void close() {
+        if (closed)
+            return;
+        flush();
+        closed = true;
+        try {
+            vtable.close();
+            for (HTable table : indexTables.values()) {
+                table.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        LOG.info(this);
+    }
+
+    public long getVertexCount() {
+        return vertexCount;
+    }
+
+    public long getEdgeCount() {
+        return edgeCount;
+    }
+
+    public long getElapsedMillis() {
+        return System.currentTimeMillis() - startTime;
+    }
+
+    public double getThroughput() {
+        long elapsed = Math.max(1, getElapsedMillis());
+        return (vertexCount + edgeCount) * 1000.0 / elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return "BulkLoadSession[vertexes=" + vertexCount + ", edges=" + edgeCount + ", indexed properties=" + propertyCount +
+                ", elapsed=" + getElapsedMillis() + "ms, throughput=" + String.format("%.1f", getThroughput()) + " elements/s]";
+    }
+
+    private Put createPut(byte[] row) {
+        Put put = new Put(row);
+        put.setWriteToWAL(writeToWAL);
+        return put;
+    }
+
+    private HTable openTable(HTable table) {
+        try {
+            HTable sessionTable = new HTable(table.getConfiguration(), table.getTableName());
+            sessionTable.setAutoFlush(false);
+            sessionTable.setWriteBufferSize(writeBufferSize);
+            return sessionTable;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void indexProperties(Element element, Map<String, Object> properties) throws IOException {
+        if (properties.isEmpty())
+            return;
+        if (graph.isIndexAsync()) {
+            //Through the pipeline, so that the entries are ordered with the other updates of the elements
+            for (Map.Entry<String, Object> e : properties.entrySet()) {
+                graph.indexPut(e.getKey(), e.getValue(), element);
+            }
+            return;
+        }
+        for (Index index : graph.indices.values()) {
+            HBaseIndex hindex = (HBaseIndex) index;
+            for (Map.Entry<String, Object> e : properties.entrySet()) {
+                Put put = hindex.createPut(e.getKey(), e.getValue(), element);
+                if (put == null)
+                    continue;
+                put.setWriteToWAL(writeToWAL);
+                HBaseHelper.IndexTableStruct struct = hindex.getIndexTable(e.getKey());
+                String tableName = Bytes.toString(struct.indexTable.getTableName());
+                HTable sessionTable = indexTables.get(tableName);
+                if (sessionTable == null) {
+                    sessionTable = openTable(struct.indexTable());
+                    indexTables.put(tableName, sessionTable);
+                }
+                sessionTable.put(put);
+                if (struct.indexColumnNameCounts != null)
+                    count(tableName, struct, put.getRow());
+                propertyCount++;
+            }
+        }
+        if (countedRows >= maxCountedRows) {
+            // The counted entries are stored before their counters move
+            flushIndexTables();
+            flushCounts();
+        }
+    }
+
+    //The loaded elements are new, every entry counts
+    private void count(String tableName, HBaseHelper.IndexTableStruct struct, byte[] row) {
+        Map<byte[], Long> counts = indexCounts.get(tableName);
+        if (counts == null) {
+            counts = new TreeMap<byte[], Long>(Bytes.BYTES_COMPARATOR);
+            indexCounts.put(tableName, counts);
+            countedTables.put(tableName, struct);
+        }
+        Long count = counts.get(row);
+        if (count == null)
+            countedRows++;
+        counts.put(row, count == null ? 1 : count + 1);
+    }
+
+    private void checkOpen() {
+        if (closed)
+            throw new RuntimeException("The bulk load session is closed");
+    }
+
+}
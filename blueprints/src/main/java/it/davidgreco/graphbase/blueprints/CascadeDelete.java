@@ -0,0 +1,225 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.davidgreco.graphbase.blueprints;
+
+import com.tinkerpop.blueprints.pgm.Element;
+import com.tinkerpop.blueprints.pgm.Index;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.filter.ColumnPrefixFilter;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.util.*;
+
+class CascadeDelete {
+
+    private static final int batchSize = 1000;
+
+    private final HBaseGraph graph;
+    private final HBaseHelper handle;
+    private final CascadeListener listener;
+    private final Map<String, List<Delete>> indexDeletes = new HashMap<String, List<Delete>>();
+    private final Map<String, HBaseHelper.IndexTableStruct> indexTables = new HashMap<String, HBaseHelper.IndexTableStruct>();
+    private long totalEdges;
+    private long removedEdges;
+
+    CascadeDelete(HBaseGraph graph, CascadeListener listener) {
+        this.graph = graph;
+        this.handle = graph.handle;
+        this.listener = listener;
+    }
+
+    void removeVertex(byte[] id) throws IOException {
+        Result row = handle.vtable().get(new Get(id));
+        if (row.isEmpty())
+            return;
+        NavigableMap<byte[], byte[]> outEdges = getFamilyMap(row, handle.vfamilyOutEdges);
+        NavigableMap<byte[], byte[]> inEdges = getFamilyMap(row, handle.vfamilyInEdges);
+        NavigableMap<byte[], byte[]> edgeProperties = getFamilyMap(row, handle.vfamilyEdgeProperties);
+        totalEdges = outEdges.size() + inEdges.size();
+
+        //The in-edges first, their _outEdges cells are on the neighbor rows
+        List<Map.Entry<byte[], byte[]>> batch = new ArrayList<Map.Entry<byte[], byte[]>>();
+        for (Map.Entry<byte[], byte[]> e : inEdges.entrySet()) {
+            batch.add(e);
+            if (batch.size() == batchSize)
+                removeInEdges(batch);
+        }
+        removeInEdges(batch);
+
+        //Then the vertex row, with the _outEdges cells of the out-edges
+        for (Map.Entry<byte[], byte[]> e : edgeProperties.entrySet()) {
+            byte[] edgeLocalId = Util.getEdgePropertyLocalId(e.getKey());
+            removeFromIndices(createEdge(Util.generateEdgeId(id, edgeLocalId)), e.getKey(), e.getValue());
+        }
+        HBaseVertex vertex = new HBaseVertex();
+        vertex.setId(id);
+        vertex.setGraph(graph);
+        for (Map.Entry<byte[], byte[]> e : getFamilyMap(row, handle.vfamilyProperties).entrySet()) {
+            if (e.getKey().length == 0)
+                continue;
+            removeFromIndices(vertex, handle.keys.getKey(e.getKey()), e.getValue());
+        }
+        flushIndexDeletes();
+        handle.vtable().delete(new Delete(id));
+        graph.invalidate(id);
+
+        //Last the _inEdges cells of the out-edges on the neighbor rows
+        for (Map.Entry<byte[], byte[]> e : outEdges.entrySet()) {
+            batch.add(e);
+            if (batch.size() == batchSize)
+                removeOutEdges(batch);
+        }
+        removeOutEdges(batch);
+    }
+
+    //The edge properties are read with a single multi-get to update the indices
+    private void removeInEdges(List<Map.Entry<byte[], byte[]>> batch) throws IOException {
+        if (batch.isEmpty())
+            return;
+        Map<byte[], List<byte[]>> qualifiers = new TreeMap<byte[], List<byte[]>>(Bytes.BYTES_COMPARATOR);
+        for (Map.Entry<byte[], byte[]> e : batch) {
+            byte[] outVertexId = Util.getEdgeIdStruct(Util.getInEdgeId(e.getValue())).vertexId;
+            List<byte[]> rowQualifiers = qualifiers.get(outVertexId);
+            if (rowQualifiers == null) {
+                rowQualifiers = new ArrayList<byte[]>();
+                qualifiers.put(outVertexId, rowQualifiers);
+            }
+            rowQualifiers.add(e.getKey());
+        }
+        List<Get> gets = new ArrayList<Get>(qualifiers.size());
+        for (Map.Entry<byte[], List<byte[]>> e : qualifiers.entrySet()) {
+            //Only the properties of the removed edges are read
+            FilterList filter = new FilterList(FilterList.Operator.MUST_PASS_ONE);
+            for (byte[] qualifier : e.getValue()) {
+                filter.addFilter(new ColumnPrefixFilter(Util.getAdjacencyStruct(qualifier).edgeLocalId));
+            }
+            Get get = new Get(e.getKey());
+            get.addFamily(handle.vfamilyEdgeProperties);
+            get.setFilter(filter);
+            gets.add(get);
+        }
+        Result[] rows = handle.vtable().get(gets);
+        List<Delete> deletes = new ArrayList<Delete>(gets.size());
+        int i = 0;
+        for (Map.Entry<byte[], List<byte[]>> e : qualifiers.entrySet()) {
+            byte[] outVertexId = e.getKey();
+            NavigableMap<byte[], byte[]> edgeProperties = getFamilyMap(rows[i++], handle.vfamilyEdgeProperties);
+            Delete delete = new Delete(outVertexId);
+            for (byte[] qualifier : e.getValue()) {
+                byte[] edgeLocalId = Util.getAdjacencyStruct(qualifier).edgeLocalId;
+                delete.deleteColumns(handle.vfamilyOutEdges, qualifier);
+                HBaseEdge edge = createEdge(Util.generateEdgeId(outVertexId, edgeLocalId));
+                for (Map.Entry<byte[], byte[]> p : edgeProperties.subMap(edgeLocalId, true, Util.generateEdgePropertyPrefixEnd(edgeLocalId), false).entrySet()) {
+                    delete.deleteColumns(handle.vfamilyEdgeProperties, p.getKey());
+                    removeFromIndices(edge, p.getKey(), p.getValue());
+                }
+            }
+            deletes.add(delete);
+        }
+        flushIndexDeletes();
+        handle.vtable().delete(deletes);
+        for (byte[] outVertexId : qualifiers.keySet()) {
+            graph.invalidate(outVertexId);
+        }
+        batchDone(batch);
+    }
+
+    private void removeOutEdges(List<Map.Entry<byte[], byte[]>> batch) throws IOException {
+        if (batch.isEmpty())
+            return;
+        Map<byte[], Delete> deletes = new TreeMap<byte[], Delete>(Bytes.BYTES_COMPARATOR);
+        for (Map.Entry<byte[], byte[]> e : batch) {
+            Delete delete = deletes.get(e.getValue());
+            if (delete == null) {
+                delete = new Delete(e.getValue());
+                deletes.put(e.getValue(), delete);
+            }
+            delete.deleteColumns(handle.vfamilyInEdges, e.getKey());
+        }
+        handle.vtable().delete(new ArrayList<Delete>(deletes.values()));
+        for (byte[] inVertexId : deletes.keySet()) {
+            graph.invalidate(inVertexId);
+        }
+        batchDone(batch);
+    }
+
+    private void batchDone(List<Map.Entry<byte[], byte[]>> batch) {
+        removedEdges += batch.size();
+        batch.clear();
+        if (listener != null)
+            listener.progress(removedEdges, totalEdges);
+    }
+
+    private HBaseEdge createEdge(byte[] edgeId) {
+        HBaseEdge edge = new HBaseEdge(graph);
+        edge.setId(edgeId);
+        return edge;
+    }
+
+    private void removeFromIndices(HBaseEdge edge, byte[] propertyQualifier, byte[] value) {
+        String key = handle.keys.getKey(Util.getEdgePropertyKeyId(propertyQualifier));
+        if (key.equals("label"))
+            return;
+        removeFromIndices((Element) edge, key, value);
+    }
+
+    private void removeFromIndices(Element element, String key, byte[] value) {
+        if (graph.indices.isEmpty())
+            return;
+        Object typedValue = Util.bytesToTypedObject(value);
+        if (graph.isIndexAsync()) {
+            //Queued behind the pending updates of the element, so that none of them is applied after the removal
+            graph.indexRemove(key, typedValue, element);
+            return;
+        }
+        for (Index index : graph.indices.values()) {
+            HBaseIndex hindex = (HBaseIndex) index;
+            Delete delete = hindex.createDelete(key, typedValue, element);
+            if (delete == null)
+                continue;
+            HBaseHelper.IndexTableStruct struct = hindex.getIndexTable(key);
+            String tableName = Bytes.toString(struct.indexTable.getTableName());
+            List<Delete> deletes = indexDeletes.get(tableName);
+            if (deletes == null) {
+                deletes = new ArrayList<Delete>();
+                indexDeletes.put(tableName, deletes);
+                indexTables.put(tableName, struct);
+            }
+            deletes.add(delete);
+        }
+    }
+
+    private void flushIndexDeletes() throws IOException {
+        for (Map.Entry<String, List<Delete>> e : indexDeletes.entrySet()) {
+            if (!e.getValue().isEmpty()) {
+                HBaseHelper.IndexTableStruct struct = indexTables.get(e.getKey());
+                HBaseIndex.deleteEntries(struct.indexTable(), struct, e.getValue());
+                e.getValue().clear();
+            }
+        }
+    }
+
+    private NavigableMap<byte[], byte[]> getFamilyMap(Result row, byte[] family) {
+        NavigableMap<byte[], byte[]> familyMap = row.getFamilyMap(family);
+        return familyMap != null ? familyMap : new TreeMap<byte[], byte[]>(Bytes.BYTES_COMPARATOR);
+    }
+
+}
@@ -0,0 +1,246 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.davidgreco.graphbase.blueprints;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+//LRU segments locked separately, bounded by rows and bytes
+public class ElementCache {
+
+    private static final int defaultSegments = 16;
+
+    private final boolean enabled;
+    private final long stalenessMillis;
+    private final Segment[] segments;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    ElementCache(int maxRows, long maxBytes, long stalenessMillis) {
+        this(maxRows, maxBytes, stalenessMillis, defaultSegments);
+    }
+
+    ElementCache(int maxRows, long maxBytes, long stalenessMillis, int segmentCount) {
+        this.enabled = maxRows > 0 && maxBytes > 0;
+        this.stalenessMillis = stalenessMillis;
+        int count = Math.max(1, Math.min(segmentCount, maxRows));
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment((maxRows + count - 1) / count, (maxBytes + count - 1) / count);
+        }
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    Result get(byte[] row) {
+        if (!enabled) {
+            return null;
+        }
+        RowKey key = new RowKey(row);
+        Segment segment = getSegment(key);
+        synchronized (segment) {
+            CachedRow cached = segment.rows.get(key);
+            if (cached != null && stalenessMillis > 0 && System.currentTimeMillis() - cached.timestamp > stalenessMillis) {
+                segment.rows.remove(key);
+                segment.bytes -= cached.weight;
+                cached = null;
+            }
+            if (cached == null) {
+                missCount.incrementAndGet();
+                return null;
+            }
+            hitCount.incrementAndGet();
+            return cached.result;
+        }
+    }
+
+    long getVersion(byte[] row) {
+        if (!enabled) {
+            return 0;
+        }
+        Segment segment = getSegment(new RowKey(row));
+        synchronized (segment) {
+            return segment.invalidations;
+        }
+    }
+
+    //Dropped if the segment was invalidated since the version was taken
+    void put(byte[] row, Result result, long version) {
+        if (!enabled) {
+            return;
+        }
+        RowKey key = new RowKey(row);
+        Segment segment = getSegment(key);
+        CachedRow cached = new CachedRow(result, weigh(row, result), System.currentTimeMillis());
+        synchronized (segment) {
+            if (segment.invalidations != version || cached.weight > segment.maxBytes) {
+                return;
+            }
+            CachedRow old = segment.rows.put(key, cached);
+            if (old != null) {
+                segment.bytes -= old.weight;
+            }
+            segment.bytes += cached.weight;
+            evictionCount.addAndGet(segment.evict());
+        }
+    }
+
+    void invalidate(byte[] row) {
+        if (!enabled) {
+            return;
+        }
+        RowKey key = new RowKey(row);
+        Segment segment = getSegment(key);
+        synchronized (segment) {
+            segment.invalidations++;
+            CachedRow old = segment.rows.remove(key);
+            if (old != null) {
+                segment.bytes -= old.weight;
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.invalidations++;
+                segment.rows.clear();
+                segment.bytes = 0;
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.rows.size();
+            }
+        }
+        return size;
+    }
+
+    public long getWeight() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                bytes += segment.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ElementCache[rows=" + size() + ", bytes=" + getWeight() + ", hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "]";
+    }
+
+    private Segment getSegment(RowKey key) {
+        return segments[(key.hash & Integer.MAX_VALUE) % segments.length];
+    }
+
+    private static long weigh(byte[] row, Result result) {
+        long weight = row.length;
+        KeyValue[] kvs = result.raw();
+        if (kvs != null) {
+            for (KeyValue kv : kvs) {
+                weight += kv.getLength();
+            }
+        }
+        return weight;
+    }
+
+    private static class Segment {
+        final int maxRows;
+        final long maxBytes;
+        final LinkedHashMap<RowKey, CachedRow> rows = new LinkedHashMap<RowKey, CachedRow>(16, 0.75f, true);
+        long bytes;
+        long invalidations;
+
+        Segment(int maxRows, long maxBytes) {
+            this.maxRows = maxRows;
+            this.maxBytes = maxBytes;
+        }
+
+        int evict() {
+            int evicted = 0;
+            Iterator<Map.Entry<RowKey, CachedRow>> it = rows.entrySet().iterator();
+            while ((rows.size() > maxRows || bytes > maxBytes) && it.hasNext()) {
+                CachedRow eldest = it.next().getValue();
+                it.remove();
+                bytes -= eldest.weight;
+                evicted++;
+            }
+            return evicted;
+        }
+    }
+
+    private static class CachedRow {
+        final Result result;
+        final long weight;
+        final long timestamp;
+
+        CachedRow(Result result, long weight, long timestamp) {
+            this.result = result;
+            this.weight = weight;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private static class RowKey {
+        final byte[] row;
+        final int hash;
+
+        RowKey(byte[] row) {
+            this.row = row;
+            this.hash = Bytes.hashCode(row);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof RowKey && Bytes.equals(row, ((RowKey) obj).row);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+}
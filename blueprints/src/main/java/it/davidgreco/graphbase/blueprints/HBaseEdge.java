@@ -16,25 +16,26 @@
  */
 package it.davidgreco.graphbase.blueprints;
 
-import com.tinkerpop.blueprints.pgm.Index;
 import com.tinkerpop.blueprints.pgm.Vertex;
-import org.apache.commons.lang.builder.EqualsBuilder;
-import org.apache.commons.lang.builder.HashCodeBuilder;
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.filter.ColumnPrefixFilter;
 import org.apache.hadoop.hbase.util.Bytes;
 
 import java.io.IOException;
 import java.util.NavigableMap;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 
 class HBaseEdge implements com.tinkerpop.blueprints.pgm.Edge {
 
     private final HBaseGraph graph;
     private byte[] id;
+    private int hash;
     private HBaseVertex outVertex;
     private HBaseVertex inVertex;
     private String label;
@@ -45,29 +46,57 @@ class HBaseEdge implements com.tinkerpop.blueprints.pgm.Edge {
 
     @Override
     public Vertex getOutVertex() {
+        if (outVertex == null) {
+            outVertex = new HBaseVertex();
+            outVertex.setId(Util.getEdgeIdStruct(id).vertexId);
+            outVertex.setGraph(graph);
+        }
         return outVertex;
     }
 
     @Override
     public Vertex getInVertex() {
+        if (inVertex == null)
+            load();
         return inVertex;
     }
 
     @Override
     public String getLabel() {
+        if (label == null)
+            load();
         return label;
     }
 
+    private void load() {
+        HBaseEdge edge = (HBaseEdge) graph.getEdge(id);
+        if (edge == null)
+            return;
+        if (label == null)
+            label = edge.label;
+        if (inVertex == null)
+            inVertex = edge.inVertex;
+    }
+
     @Override
     public Object getProperty(String key) {
         try {
+            byte[] kid = graph.handle.keys.getId(key);
+            if (kid == null)
+                return null;
             Util.EdgeIdStruct struct = Util.getEdgeIdStruct(id);
-            Get get = new Get(struct.vertexId);
-            Result result = graph.handle.vtable.get(get);
-            byte[] bvalue = result.getValue(Bytes.toBytes(graph.handle.vnameEdgeProperties), Util.generateEdgePropertyId(key, struct.edgeLocalId));
-            if (bvalue == null)
+            byte[] bfamily = graph.handle.vfamilyEdgeProperties;
+            byte[] qualifier = Util.generateEdgePropertyId(kid, struct.edgeLocalId);
+            Result result = graph.cache.get(struct.vertexId);
+            if (result == null) {
+                Get get = new Get(struct.vertexId);
+                get.addColumn(bfamily, qualifier);
+                result = graph.handle.vtable().get(get);
+            }
+            KeyValue kv = result.getColumnLatest(bfamily, qualifier);
+            if (kv == null)
                 return null;
-            return Util.bytesToTypedObject(bvalue);
+            return Util.bytesToTypedObject(kv);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -76,19 +105,11 @@ class HBaseEdge implements com.tinkerpop.blueprints.pgm.Edge {
     @Override
     public Set<String> getPropertyKeys() {
         try {
-            Util.EdgeIdStruct struct = Util.getEdgeIdStruct(id);
-            Get get = new Get(struct.vertexId);
-            Result result = graph.handle.vtable.get(get);
-            NavigableMap<byte[], byte[]> familyMap = result.getFamilyMap(Bytes.toBytes(graph.handle.vnameEdgeProperties));
             Set<String> keys = new TreeSet<String>();
-            Set<byte[]> bkeys = familyMap.keySet();
-            for (byte[] bkey : bkeys) {
-                byte[] id = Bytes.tail(bkey, 8);
-                if (Bytes.equals(id, struct.edgeLocalId)) {
-                    String key = Bytes.toString(Bytes.head(bkey, bkey.length - 8));
-                    if (!key.equals("label"))
-                        keys.add(key);
-                }
+            for (byte[] bkey : getPropertyCells().keySet()) {
+                String key = graph.handle.keys.getKey(Util.getEdgePropertyKeyId(bkey));
+                if (!key.equals("label"))
+                    keys.add(key);
             }
             return keys;
         } catch (IOException e) {
@@ -96,53 +117,74 @@ class HBaseEdge implements com.tinkerpop.blueprints.pgm.Edge {
         }
     }
 
+    //Label included
+    NavigableMap<byte[], byte[]> getPropertyCells() throws IOException {
+        Util.EdgeIdStruct struct = Util.getEdgeIdStruct(id);
+        byte[] bfamily = graph.handle.vfamilyEdgeProperties;
+        Result cached = graph.cache.get(struct.vertexId);
+        if (cached != null) {
+            NavigableMap<byte[], byte[]> familyMap = cached.getFamilyMap(bfamily);
+            if (familyMap == null)
+                return new TreeMap<byte[], byte[]>(Bytes.BYTES_COMPARATOR);
+            return familyMap.subMap(struct.edgeLocalId, true, Util.generateEdgePropertyPrefixEnd(struct.edgeLocalId), false);
+        }
+        Get get = new Get(struct.vertexId);
+        get.addFamily(bfamily);
+        get.setFilter(new ColumnPrefixFilter(struct.edgeLocalId));
+        Result result = graph.handle.vtable().get(get);
+        if (result.isEmpty())
+            return new TreeMap<byte[], byte[]>(Bytes.BYTES_COMPARATOR);
+        return result.getFamilyMap(bfamily);
+    }
+
     @Override
-    @SuppressWarnings("unchecked")
     public void setProperty(String key, Object value) {
         try {
             byte[] bvalue = Util.typedObjectToBytes(value);
             Util.EdgeIdStruct struct = Util.getEdgeIdStruct(id);
+            byte[] qualifier = Util.generateEdgePropertyId(graph.handle.keys.getOrCreateId(key), struct.edgeLocalId);
             Put put = new Put(struct.vertexId);
-            put.add(Bytes.toBytes(graph.handle.vnameEdgeProperties), Util.generateEdgePropertyId(key, struct.edgeLocalId), bvalue);
-            boolean res = graph.handle.vtable.checkAndPut(struct.vertexId, Bytes.toBytes(graph.handle.vnameEdgeProperties), Util.generateEdgePropertyId(key, struct.edgeLocalId), null, put);
+            put.add(graph.handle.vfamilyEdgeProperties, qualifier, bvalue);
+            boolean res = graph.handle.vtable().checkAndPut(struct.vertexId, graph.handle.vfamilyEdgeProperties, qualifier, null, put);
+            graph.invalidate(struct.vertexId);
             if (!res) {
                 //I remove the old property from the index
                 Object oldValue = this.getProperty(key);
                 //Automatic indices update
-                for (Index e : graph.indices.values()) {
-                    e.remove(key, oldValue, this);
-                }
-                graph.handle.vtable.put(put);
+                graph.indexRemove(key, oldValue, this);
+                graph.handle.vtable().put(put);
+                graph.invalidate(struct.vertexId);
             }
             //Automatic indices update
-            for (Index e : graph.indices.values()) {
-                e.put(key, value, this);
-            }
+            graph.indexPut(key, value, this);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     public Object removeProperty(String key) {
         try {
+            byte[] kid = graph.handle.keys.getId(key);
+            if (kid == null)
+                return null;
             Util.EdgeIdStruct struct = Util.getEdgeIdStruct(id);
+            byte[] qualifier = Util.generateEdgePropertyId(kid, struct.edgeLocalId);
             Get get = new Get(struct.vertexId);
-            Result result = graph.handle.vtable.get(get);
-            byte[] bvalue = result.getValue(Bytes.toBytes(graph.handle.vnameEdgeProperties), Util.generateEdgePropertyId(key, struct.edgeLocalId));
+            get.addColumn(graph.handle.vfamilyEdgeProperties, qualifier);
+            Result result = graph.handle.vtable().get(get);
+            byte[] bvalue = result.getValue(graph.handle.vfamilyEdgeProperties, qualifier);
             if (bvalue == null)
                 return null;
             Delete delete = new Delete(get.getRow());
-            delete.deleteColumns(Bytes.toBytes(graph.handle.vnameEdgeProperties), Util.generateEdgePropertyId(key, struct.edgeLocalId));
+            delete.deleteColumns(graph.handle.vfamilyEdgeProperties, qualifier);
             Object value = Util.bytesToTypedObject(bvalue);
 
             //Automatic indices update
-            for (Index e : graph.indices.values()) {
-                e.remove(key, value, this);
-            }
+            graph.indexRemove(key, value, this);
             //
-            graph.handle.vtable.delete(delete);
+            graph.handle.vtable().delete(delete);
+            graph.invalidate(struct.vertexId);
             return value;
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -156,6 +198,7 @@ class HBaseEdge implements com.tinkerpop.blueprints.pgm.Edge {
 
     void setId(byte[] id) {
         this.id = id;
+        this.hash = 0;
     }
 
     void setOutVertex(HBaseVertex outVertex) {
@@ -181,17 +224,17 @@ class HBaseEdge implements com.tinkerpop.blueprints.pgm.Edge {
         if (obj.getClass() != getClass()) {
             return false;
         }
-        HBaseEdge rhs = (HBaseEdge) obj;
-        return new EqualsBuilder()
-                .append(id, rhs.id)
-                .isEquals();
+        return Bytes.equals(id, ((HBaseEdge) obj).id);
     }
 
     @Override
     public int hashCode() {
-        return new HashCodeBuilder(99, 33)
-                .append(id)
-                .toHashCode();
+        int h = hash;
+        if (h == 0) {
+            h = Bytes.hashCode(id);
+            hash = h;
+        }
+        return h;
     }
 
 }
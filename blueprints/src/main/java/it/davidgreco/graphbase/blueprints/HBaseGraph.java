@@ -17,27 +17,121 @@
 package it.davidgreco.graphbase.blueprints;
 
 import com.tinkerpop.blueprints.pgm.*;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.MasterNotRunningException;
 import org.apache.hadoop.hbase.ZooKeeperConnectionException;
 import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
 import org.apache.hadoop.hbase.util.Bytes;
 
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 public class HBaseGraph implements Graph, IndexableGraph {
 
+    private static final Log LOG = LogFactory.getLog(HBaseGraph.class);
+
+    //0 (the default) disables the element cache
+    public static final String CACHE_MAX_ROWS = "graphbase.cache.maxrows";
+    public static final String CACHE_MAX_BYTES = "graphbase.cache.maxbytes";
+    //Bounds how long the writes of other clients can go unseen
+    public static final String CACHE_STALENESS_MS = "graphbase.cache.staleness.ms";
+    public static final String SCAN_CACHING = "graphbase.scan.caching";
+    //Cells per Result of the getEdges scanner
+    public static final String SCAN_BATCH = "graphbase.scan.batch";
+    public static final String BULKLOAD_WRITE_BUFFER = "graphbase.bulkload.writebuffer";
+    //Without the WAL a region server failure loses the bulk load writes not yet flushed
+    public static final String BULKLOAD_WAL = "graphbase.bulkload.wal";
+    //addEdge and removeEdge skip checking the vertexes returned by addVertex of this instance
+    public static final String TRUST_CREATED_VERTEXES = "graphbase.trustcreatedvertexes";
+    //Check that the index results exist and still hold the value, stale entries are removed
+    public static final String INDEX_VERIFY = "graphbase.index.verify";
+    public static final String INDEX_VERIFY_BATCH = "graphbase.index.verify.batch";
+    public static final String INDEX_PAGE_SIZE = "graphbase.index.pagesize";
+    //Lookups may miss the entries not written yet until flushIndices returns
+    public static final String INDEX_ASYNC = "graphbase.index.async";
+    //"table-per-key" (the default) or "shared", where the entries of a hot key still go to one region
+    public static final String INDEX_STORAGE = "graphbase.index.storage";
+    public static final String INDEX_SHARED_REGIONS = "graphbase.index.shared.regions";
+    //The property writes block beyond it
+    public static final String INDEX_QUEUE_SIZE = "graphbase.index.queue.size";
+    public static final String INDEX_BATCH = "graphbase.index.batch";
+    public static final String INDEX_LOG_DIR = "graphbase.index.log.dir";
+    //Without sync the log survives a client crash but not a host crash
+    public static final String INDEX_LOG_SYNC = "graphbase.index.log.sync";
+    //Retries one second apart before flushIndices reports the batch failed
+    public static final String INDEX_RETRIES = "graphbase.index.retries";
+    //Index the existing elements when an automatic index is created
+    public static final String INDEX_BACKFILL = "graphbase.index.backfill";
+    public static final String INDEX_BACKFILL_THREADS = "graphbase.index.backfill.threads";
+    //The backfill progress is saved after every batch
+    public static final String INDEX_BACKFILL_BATCH = "graphbase.index.backfill.batch";
+    //0 means no limit
+    public static final String INDEX_BACKFILL_RATE = "graphbase.index.backfill.rate";
+    public static final String VERTEX_IDS = "graphbase.vertex.ids";
+    //Only with salted or hashed ids, at most 256
+    public static final String VERTEX_REGIONS = "graphbase.vertex.regions";
+    public static final String SCHEMA = "graphbase.schema";
+
     final HBaseHelper handle;
     final Map<String, Index> indices;
+    final ElementCache cache;
+    final int scanCaching;
+    final int scanBatch;
+    final long bulkLoadWriteBuffer;
+    final boolean bulkLoadWAL;
+    final boolean trustCreatedVertexes;
+    final boolean indexVerify;
+    final int indexVerifyBatch;
+    final int indexPageSize;
+    final int indexSharedRegions;
+    final boolean indexBackfill;
+    final int indexBackfillThreads;
+    final int indexBackfillBatch;
+    final int indexBackfillRate;
+    final int vertexRegions;
+    final boolean compactSchema;
+    private final int vertexSaltBuckets;
+    private final boolean vertexIdsHashed;
+    private ExecutorService indexRepairExecutor;
+    private final IndexPipeline indexPipeline;
+    private final Set<Thread> backfills = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+
+    private final HBaseScanSequence.Decoder<Vertex> vertexDecoder = new HBaseScanSequence.Decoder<Vertex>() {
+        @Override
+        public void decode(Result result, List<Vertex> buffer) {
+            HBaseVertex vertex = new HBaseVertex();
+            vertex.setId(result.getRow());
+            vertex.setGraph(HBaseGraph.this);
+            buffer.add(vertex);
+        }
+    };
+
+    private final HBaseScanSequence.Decoder<Edge> edgeDecoder = new HBaseScanSequence.Decoder<Edge>() {
+        @Override
+        public void decode(Result result, List<Edge> buffer) throws IOException {
+            for (KeyValue kv : result.raw()) {
+                buffer.add(buildOutEdge(kv.getRow(), kv.getQualifier(), kv.getValue()));
+            }
+        }
+    };
 
     public HBaseGraph(String quorum, String port, String name) {
+        this(createConfiguration(quorum, port), name);
+    }
 
-        Configuration conf = HBaseConfiguration.create();
-        conf.set("hbase.zookeeper.quorum", quorum);
-        conf.set("hbase.zookeeper.property.clientPort", port);
+    public HBaseGraph(Configuration conf, String name) {
         HBaseAdmin admin = null;
         try {
             admin = new HBaseAdmin(conf);
@@ -46,25 +140,116 @@ public class HBaseGraph implements Graph, IndexableGraph {
         } catch (ZooKeeperConnectionException e) {
             throw new RuntimeException(e);
         }
+        String vertexIds = conf.get(VERTEX_IDS, "time");
+        int regions = conf.getInt(VERTEX_REGIONS, 16);
+        if (regions < 1 || regions > 256)
+            throw new RuntimeException("The vertex table can not be created with " + regions + " regions");
+        if (vertexIds.equals("salted")) {
+            this.vertexRegions = regions;
+            this.vertexSaltBuckets = regions;
+            this.vertexIdsHashed = false;
+        } else if (vertexIds.equals("hashed")) {
+            this.vertexRegions = regions;
+            this.vertexSaltBuckets = 0;
+            this.vertexIdsHashed = true;
+        } else if (vertexIds.equals("time")) {
+            this.vertexRegions = 1;
+            this.vertexSaltBuckets = 0;
+            this.vertexIdsHashed = false;
+        } else
+            throw new RuntimeException("Unknown vertex ids " + vertexIds);
+        String schema = conf.get(SCHEMA, "default");
+        if (schema.equals("compact"))
+            this.compactSchema = true;
+        else if (schema.equals("default"))
+            this.compactSchema = false;
+        else
+            throw new RuntimeException("Unknown schema " + schema);
         this.handle = new HBaseHelper(admin, name);
-        this.handle.createTables();
-        this.indices = new HashMap<String, Index>();
+        this.handle.createTables(vertexRegions, compactSchema);
+        this.cache = new ElementCache(conf.getInt(CACHE_MAX_ROWS, 0), conf.getLong(CACHE_MAX_BYTES, 64 * 1024 * 1024), conf.getLong(CACHE_STALENESS_MS, 1000));
+        this.scanCaching = conf.getInt(SCAN_CACHING, 1000);
+        this.scanBatch = conf.getInt(SCAN_BATCH, 1000);
+        this.bulkLoadWriteBuffer = conf.getLong(BULKLOAD_WRITE_BUFFER, 16 * 1024 * 1024);
+        this.bulkLoadWAL = conf.getBoolean(BULKLOAD_WAL, true);
+        this.trustCreatedVertexes = conf.getBoolean(TRUST_CREATED_VERTEXES, false);
+        this.indexVerify = conf.getBoolean(INDEX_VERIFY, false);
+        this.indexVerifyBatch = conf.getInt(INDEX_VERIFY_BATCH, 100);
+        this.indexPageSize = conf.getInt(INDEX_PAGE_SIZE, 1000);
+        String indexStorage = conf.get(INDEX_STORAGE, "table-per-key");
+        if (indexStorage.equals("shared"))
+            this.indexSharedRegions = conf.getInt(INDEX_SHARED_REGIONS, 16);
+        else if (indexStorage.equals("table-per-key"))
+            this.indexSharedRegions = 0;
+        else
+            throw new RuntimeException("Unknown index storage " + indexStorage);
+        this.indexBackfill = conf.getBoolean(INDEX_BACKFILL, false);
+        this.indexBackfillThreads = conf.getInt(INDEX_BACKFILL_THREADS, 4);
+        this.indexBackfillBatch = conf.getInt(INDEX_BACKFILL_BATCH, 1000);
+        this.indexBackfillRate = conf.getInt(INDEX_BACKFILL_RATE, 0);
+        this.indices = new ConcurrentHashMap<String, Index>();
         Iterable<Index<? extends Element>> iterable = this.getIndices();
         for (Index<? extends Element> index : iterable) {
             indices.put(index.getIndexName(), index);
         }
+        if (conf.getBoolean(INDEX_ASYNC, false)) {
+            this.indexPipeline = new IndexPipeline(this, conf.getInt(INDEX_QUEUE_SIZE, 10000), conf.getInt(INDEX_BATCH, 1000),
+                    conf.get(INDEX_LOG_DIR), conf.getBoolean(INDEX_LOG_SYNC, false), conf.getInt(INDEX_RETRIES, 10));
+            indexPipeline.start();
+        } else {
+            this.indexPipeline = null;
+        }
+    }
+
+    private static Configuration createConfiguration(String quorum, String port) {
+        Configuration conf = HBaseConfiguration.create();
+        conf.set("hbase.zookeeper.quorum", quorum);
+        conf.set("hbase.zookeeper.property.clientPort", port);
+        return conf;
+    }
+
+    public ElementCache getElementCache() {
+        return cache;
+    }
+
+    byte[] generateVertexId() {
+        if (vertexSaltBuckets > 0)
+            return Util.generateSaltedVertexId(vertexSaltBuckets);
+        if (vertexIdsHashed)
+            return Util.generateHashedVertexId();
+        return Util.generateVertexId();
+    }
+
+    Result getRow(byte[] id) throws IOException {
+        Result result = cache.get(id);
+        if (result == null) {
+            long version = cache.getVersion(id);
+            result = handle.vtable().get(new Get(id));
+            cache.put(id, result, version);
+        }
+        return result;
+    }
+
+    void invalidate(byte[] id) {
+        cache.invalidate(id);
+    }
+
+    public BulkLoadSession startBulkLoad() {
+        return new BulkLoadSession(this, bulkLoadWriteBuffer, bulkLoadWAL);
     }
 
     @Override
     public Vertex addVertex(Object o) {
         try {
-            byte[] id = Util.generateVertexId();
+            byte[] id = generateVertexId();
             HBaseVertex vertex = new HBaseVertex();
             vertex.setId(id);
             vertex.setGraph(this);
+            vertex.setCreated(true);
             Put put = new Put(id);
-            put.add(Bytes.toBytes(handle.vnameProperties), null, null);
-            handle.vtable.put(put);
+            put.add(handle.vfamilyProperties, null, null);
+            handle.vtable().put(put);
+            invalidate(id);
             return vertex;
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -74,8 +259,7 @@ public class HBaseGraph implements Graph, IndexableGraph {
     @Override
     public Vertex getVertex(Object id) {
         try {
-            Get g = new Get((byte[]) id);
-            Result result = handle.vtable.get(g);
+            Result result = getRow((byte[]) id);
 
             if (result.isEmpty())
                 return null;
@@ -91,53 +275,68 @@ public class HBaseGraph implements Graph, IndexableGraph {
 
     @Override
     public void removeVertex(Vertex vertex) {
+        removeVertex(vertex, null);
+    }
+
+    //The listener may be null
+    public void removeVertex(Vertex vertex, CascadeListener listener) {
         try {
-            Iterable<Edge> outEdges = vertex.getOutEdges();
-            for (Edge e : outEdges) {
-                this.removeEdge(e);
-            }
-            Iterable<Edge> inEdges = vertex.getInEdges();
-            for (Edge e : inEdges) {
-                this.removeEdge(e);
-            }
-            Set<String> keys = vertex.getPropertyKeys();
-            for (String k : keys) {
-                vertex.removeProperty(k);
-            }
-            Delete delete = new Delete((byte[]) vertex.getId());
-            handle.vtable.delete(delete);
+            new CascadeDelete(this, listener).removeVertex((byte[]) vertex.getId());
+            if (vertex instanceof HBaseVertex)
+                ((HBaseVertex) vertex).setCreated(false);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    //Only the row keys are transferred
     @Override
-    public Iterable<Vertex> getVertices() {
-        throw new RuntimeException("Not supported");
+    public CloseableSequence<Vertex> getVertices() {
+        return new HBaseScanSequence<Vertex>(handle.vtable(), createVertexScan(), vertexDecoder);
+    }
+
+    //The callback is called from the pool threads
+    public void forEachVertex(int threads, PartitionCallback<Vertex> callback) {
+        new ParallelScan<Vertex>(handle.vtables(), createVertexScan(), vertexDecoder, threads).run(callback);
+    }
+
+    //In no particular order
+    public CloseableSequence<Vertex> getVertices(int threads) {
+        return new ParallelScan<Vertex>(handle.vtables(), createVertexScan(), vertexDecoder, threads).sequence(scanCaching * threads);
+    }
+
+    Scan createVertexScan() {
+        Scan scan = new Scan();
+        //Every vertex row has the empty marker cell written by addVertex in the properties family
+        scan.addFamily(handle.vfamilyProperties);
+        FilterList filters = new FilterList();
+        filters.addFilter(new FirstKeyOnlyFilter());
+        filters.addFilter(new KeyOnlyFilter());
+        scan.setFilter(filters);
+        scan.setCaching(scanCaching);
+        scan.setCacheBlocks(false);
+        return scan;
     }
 
     @Override
     public Edge addEdge(Object o, Vertex outVertex, Vertex inVertex, String label) {
-        RowLock lockOut = null;
-        RowLock lockIn = null;
         try {
-            Get gOut = new Get((byte[]) outVertex.getId());
-            Result resultOut = handle.vtable.get(gOut);
-            Get gIn = new Get((byte[]) inVertex.getId());
-            Result resultIn = handle.vtable.get(gIn);
-            if (!resultIn.isEmpty() && !resultOut.isEmpty()) {
-                lockOut = handle.vtable.lockRow((byte[]) outVertex.getId());
-                lockIn = handle.vtable.lockRow((byte[]) inVertex.getId());
+            if (isTrusted(outVertex) && isTrusted(inVertex) || existVertexes((byte[]) outVertex.getId(), (byte[]) inVertex.getId())) {
                 byte[] edgeLocalId = Util.generateEdgeLocalId();
-                Put outPut = new Put((byte[]) outVertex.getId(), lockOut);
-                outPut.add(Bytes.toBytes(handle.vnameOutEdges), edgeLocalId, (byte[]) inVertex.getId());
-                outPut.add(Bytes.toBytes(handle.vnameEdgeProperties), Util.generateEdgePropertyId("label", edgeLocalId), Bytes.toBytes(label));
+                byte[] adjacencyQualifier = handle.generateAdjacencyQualifier(label, edgeLocalId);
                 byte[] edgeId = Util.generateEdgeId((byte[]) outVertex.getId(), edgeLocalId);
-                handle.vtable.put(outPut);
-
-                Put inPut = new Put((byte[]) inVertex.getId(), lockIn);
-                inPut.add(Bytes.toBytes(handle.vnameInEdges), edgeLocalId, edgeId);
-                handle.vtable.put(inPut);
+                //No row locks, every Put is atomic on its row and the out-vertex row is written first:
+                //once it's there the edge exists, a missing in-edge cell is completed by HBaseGraphRepair
+                Put outPut = new Put((byte[]) outVertex.getId());
+                outPut.add(handle.vfamilyOutEdges, adjacencyQualifier, (byte[]) inVertex.getId());
+                outPut.add(handle.vfamilyEdgeProperties, Util.generateEdgePropertyId(handle.keys.getLabelId(), edgeLocalId), Bytes.toBytes(label));
+                handle.vtable().put(outPut);
+
+                Put inPut = new Put((byte[]) inVertex.getId());
+                inPut.add(handle.vfamilyInEdges, adjacencyQualifier, Util.generateInEdgeValue(edgeId, label));
+                handle.vtable().put(inPut);
+                invalidate((byte[]) outVertex.getId());
+                invalidate((byte[]) inVertex.getId());
 
                 HBaseEdge edge = new HBaseEdge(this);
                 edge.setId(edgeId);
@@ -150,21 +349,6 @@ public class HBaseGraph implements Graph, IndexableGraph {
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
-        } finally {
-            if (lockOut != null) {
-                try {
-                    handle.vtable.unlockRow(lockOut);
-                } catch (IOException ignored) {
-
-                }
-            }
-            if (lockIn != null) {
-                try {
-                    handle.vtable.unlockRow(lockIn);
-                } catch (IOException ignored) {
-
-                }
-            }
         }
     }
 
@@ -175,24 +359,31 @@ public class HBaseGraph implements Graph, IndexableGraph {
 
             byte[] outVertexId = struct.vertexId;
 
-            Get g = new Get(struct.vertexId);
-            Result result = handle.vtable.get(g);
+            Result result = getRow(struct.vertexId);
             if (result.isEmpty())
                 return null;
 
-            byte[] inVertexId = result.getValue(Bytes.toBytes(handle.vnameOutEdges), struct.edgeLocalId);
+            byte[] blabel = result.getValue(handle.vfamilyEdgeProperties, Util.generateEdgePropertyId(handle.keys.getLabelId(), struct.edgeLocalId));
+            if (blabel == null) {
+                return null;
+            }
+            String label = Bytes.toString(blabel);
 
+            byte[] inVertexId = result.getValue(handle.vfamilyOutEdges, handle.generateAdjacencyQualifier(label, struct.edgeLocalId));
+            if (inVertexId == null) {
+                inVertexId = result.getValue(handle.vfamilyOutEdges, struct.edgeLocalId);
+            }
             if (inVertexId == null) {
                 return null;
             }
 
-            String label = Bytes.toString(result.getValue(Bytes.toBytes(handle.vnameEdgeProperties), Util.generateEdgePropertyId("label", struct.edgeLocalId)));
-
             HBaseEdge edge = new HBaseEdge(this);
             HBaseVertex outVertex = new HBaseVertex();
             outVertex.setId(outVertexId);
+            outVertex.setGraph(this);
             HBaseVertex inVertex = new HBaseVertex();
             inVertex.setId(inVertexId);
+            inVertex.setGraph(this);
             edge.setId((byte[]) id);
             edge.setInVertex(inVertex);
             edge.setOutVertex(outVertex);
@@ -206,32 +397,39 @@ public class HBaseGraph implements Graph, IndexableGraph {
     @Override
     public void removeEdge(Edge edge) {
         try {
+            if (!(edge instanceof HBaseEdge)) {
+                edge = getEdge(edge.getId());
+                if (edge == null)
+                    return;
+            }
             byte[] outVertexId = (byte[]) edge.getOutVertex().getId();
             byte[] inVertexId = (byte[]) edge.getInVertex().getId();
-            Get gOut = new Get(outVertexId);
-            Result resultOut = handle.vtable.get(gOut);
-            Get gIn = new Get(inVertexId);
-            Result resultIn = handle.vtable.get(gIn);
-            if (!resultIn.isEmpty() && !resultOut.isEmpty()) {
-                Set<String> keys = edge.getPropertyKeys();
-                for (String k : keys) {
-                    edge.removeProperty(k);
-                }
-                Util.EdgeIdStruct struct = Util.getEdgeIdStruct((byte[]) edge.getId());
-                Delete delete = new Delete(gOut.getRow());
-                delete.deleteColumns(Bytes.toBytes(handle.vnameOutEdges), struct.edgeLocalId);
-                NavigableMap<byte[], byte[]> familyMap = resultOut.getFamilyMap(Bytes.toBytes(handle.vnameEdgeProperties));
-                Set<byte[]> bkeys = familyMap.keySet();
-                for (byte[] bkey : bkeys) {
-                    byte[] id = Bytes.tail(bkey, 8);
-                    if (Bytes.equals(id, struct.edgeLocalId)) {
-                        delete.deleteColumns(Bytes.toBytes(handle.vnameEdgeProperties), bkey);
+            Util.EdgeIdStruct struct = Util.getEdgeIdStruct((byte[]) edge.getId());
+            boolean exist = isTrusted(edge.getOutVertex()) && isTrusted(edge.getInVertex()) || existVertexes(outVertexId, inVertexId);
+            if (exist) {
+                NavigableMap<byte[], byte[]> cells = ((HBaseEdge) edge).getPropertyCells();
+                Delete delete = new Delete(outVertexId);
+                String label = edge.getLabel();
+                for (Map.Entry<byte[], byte[]> e : cells.entrySet()) {
+                    delete.deleteColumns(handle.vfamilyEdgeProperties, e.getKey());
+                    String key = handle.keys.getKey(Util.getEdgePropertyKeyId(e.getKey()));
+                    if (key.equals("label")) {
+                        label = Bytes.toString(e.getValue());
+                        continue;
                     }
+                    //Automatic indices update
+                    indexRemove(key, Util.bytesToTypedObject(e.getValue()), edge);
                 }
-                handle.vtable.delete(delete);
-                delete = new Delete(gIn.getRow());
-                delete.deleteColumns(Bytes.toBytes(handle.vnameInEdges), struct.edgeLocalId);
-                handle.vtable.delete(delete);
+                byte[] adjacencyQualifier = handle.generateAdjacencyQualifier(label, struct.edgeLocalId);
+                delete.deleteColumns(handle.vfamilyOutEdges, adjacencyQualifier);
+                delete.deleteColumns(handle.vfamilyOutEdges, struct.edgeLocalId);
+                handle.vtable().delete(delete);
+                delete = new Delete(inVertexId);
+                delete.deleteColumns(handle.vfamilyInEdges, adjacencyQualifier);
+                delete.deleteColumns(handle.vfamilyInEdges, struct.edgeLocalId);
+                handle.vtable().delete(delete);
+                invalidate(outVertexId);
+                invalidate(inVertexId);
             }
 
         } catch (IOException e) {
@@ -239,23 +437,146 @@ public class HBaseGraph implements Graph, IndexableGraph {
         }
     }
 
+    Get createMarkerGet(byte[] id) {
+        Get get = new Get(id);
+        get.addColumn(handle.vfamilyProperties, HConstants.EMPTY_BYTE_ARRAY);
+        return get;
+    }
+
+    private boolean existVertexes(byte[] outVertexId, byte[] inVertexId) throws IOException {
+        Result[] results = handle.vtable().get(Arrays.asList(createMarkerGet(outVertexId), createMarkerGet(inVertexId)));
+        for (Result result : results) {
+            if (result == null || result.isEmpty())
+                return false;
+        }
+        return true;
+    }
+
+    private boolean isTrusted(Vertex vertex) {
+        return trustCreatedVertexes && vertex instanceof HBaseVertex && ((HBaseVertex) vertex).isCreated(this);
+    }
+
     @Override
-    public Iterable<Edge> getEdges() {
-        throw new UnsupportedOperationException();
+    public CloseableSequence<Edge> getEdges() {
+        return new HBaseScanSequence<Edge>(handle.vtable(), createEdgeScan(), edgeDecoder);
+    }
+
+    //The callback is called from the pool threads
+    public void forEachEdge(int threads, PartitionCallback<Edge> callback) {
+        new ParallelScan<Edge>(handle.vtables(), createEdgeScan(), edgeDecoder, threads).run(callback);
+    }
+
+    //In no particular order
+    public CloseableSequence<Edge> getEdges(int threads) {
+        return new ParallelScan<Edge>(handle.vtables(), createEdgeScan(), edgeDecoder, threads).sequence(scanCaching * threads);
+    }
+
+    Scan createEdgeScan() {
+        Scan scan = new Scan();
+        scan.addFamily(handle.vfamilyOutEdges);
+        scan.setCaching(scanCaching);
+        scan.setBatch(scanBatch);
+        scan.setCacheBlocks(false);
+        return scan;
+    }
+
+    HBaseEdge buildOutEdge(byte[] outVertexId, byte[] adjacencyQualifier, byte[] inVertexId) throws IOException {
+        Util.AdjacencyStruct struct = Util.getAdjacencyStruct(adjacencyQualifier);
+        String label = struct.label;
+        if (label == null) {
+            Result row = getRow(outVertexId);
+            label = Bytes.toString(row.getValue(handle.vfamilyEdgeProperties, Util.generateEdgePropertyId(handle.keys.getLabelId(), struct.edgeLocalId)));
+        }
+        HBaseVertex outVertex = new HBaseVertex();
+        outVertex.setId(outVertexId);
+        outVertex.setGraph(this);
+        HBaseVertex inVertex = new HBaseVertex();
+        inVertex.setId(inVertexId);
+        inVertex.setGraph(this);
+        HBaseEdge edge = new HBaseEdge(this);
+        edge.setId(Util.generateEdgeId(outVertexId, struct.edgeLocalId));
+        edge.setOutVertex(outVertex);
+        edge.setInVertex(inVertex);
+        edge.setLabel(label);
+        return edge;
     }
 
     @Override
     public void clear() {
-        Iterable<Index<? extends Element>> indices = getIndices();
-        for (Index i : indices) {
+        flushIndices();
+        for (Index i : getIndices()) {
             dropIndex(i.getIndexName());
         }
+        //The tables are recreated, the HTables opened on the old ones must not be reused
+        for (Index index : indices.values()) {
+            ((HBaseIndex) index).closeTables();
+        }
+        indices.clear();
+        handle.closeTables();
         handle.deleteTables();
-        handle.createTables();
+        handle.createTables(vertexRegions, compactSchema);
+        cache.invalidateAll();
     }
 
     @Override
     public void shutdown() {
+        try {
+            stopBackfills();
+            if (indexPipeline != null)
+                indexPipeline.close();
+        } finally {
+            synchronized (this) {
+                if (indexRepairExecutor != null)
+                    indexRepairExecutor.shutdown();
+                indexRepairExecutor = null;
+            }
+            handle.closeTables();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    void indexPut(String key, Object value, Element element) {
+        if (indexPipeline != null) {
+            indexPipeline.put(key, value, element);
+            return;
+        }
+        for (Index index : indices.values()) {
+            index.put(key, value, element);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    void indexRemove(String key, Object value, Element element) {
+        if (indexPipeline != null) {
+            indexPipeline.remove(key, value, element);
+            return;
+        }
+        for (Index index : indices.values()) {
+            index.remove(key, value, element);
+        }
+    }
+
+    boolean isIndexAsync() {
+        return indexPipeline != null;
+    }
+
+    public void flushIndices() {
+        if (indexPipeline != null)
+            indexPipeline.flush();
+    }
+
+    synchronized ExecutorService getIndexRepairExecutor() {
+        if (indexRepairExecutor == null) {
+            indexRepairExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "graphbase-index-repair-" + Bytes.toString(handle.vtables().getTableName()));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return indexRepairExecutor;
     }
 
     @Override
@@ -265,22 +586,77 @@ public class HBaseGraph implements Graph, IndexableGraph {
 
     @Override
     public <T extends Element> AutomaticIndex<T> createAutomaticIndex(String indexName, Class<T> indexClass, Set<String> keys) {
-        ConcurrentHashMap<String, HBaseHelper.IndexTableStruct> indexTables = handle.createAutomaticIndexTables(indexName, indexClass, keys);
-        HBaseIndex<T> index = new HBaseIndex<T>(this, indexName, indexClass, indexTables);
+        ConcurrentHashMap<String, HBaseHelper.IndexTableStruct> indexTables = handle.createAutomaticIndexTables(indexName, indexClass, keys, indexSharedRegions);
+        final HBaseIndex<T> index = new HBaseIndex<T>(this, indexName, indexClass, indexTables);
+        if (indexBackfill) {
+            handle.setIndexBuilding(indexName);
+            index.setBuilding(true);
+        }
         indices.put(index.getIndexName(), index);
+        if (indexBackfill) {
+            Thread backfill = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        new IndexBackfill(HBaseGraph.this, index, indexBackfillThreads, indexBackfillBatch, indexBackfillRate).run();
+                    } catch (RuntimeException e) {
+                        if (Thread.currentThread().isInterrupted())
+                            LOG.info("Stopped the backfill of index " + index.getIndexName() + ", buildIndex resumes it");
+                        else
+                            LOG.error("Failed to backfill index " + index.getIndexName() + ", buildIndex resumes it", e);
+                    } finally {
+                        backfills.remove(Thread.currentThread());
+                    }
+                }
+            }, "graphbase-index-backfill-" + indexName);
+            backfill.setDaemon(true);
+            backfills.add(backfill);
+            backfill.start();
+        }
         return index;
     }
 
+    private void stopBackfills() {
+        for (Thread backfill : backfills) {
+            backfill.interrupt();
+        }
+        try {
+            for (Thread backfill : backfills) {
+                backfill.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //Resumes an interrupted backfill
+    public long buildIndex(String indexName) {
+        HBaseIndex<?> index = (HBaseIndex<?>) indices.get(indexName);
+        if (index == null) {
+            for (Index<? extends Element> stored : getIndices()) {
+                if (stored.getIndexName().equals(indexName)) {
+                    index = (HBaseIndex<?>) stored;
+                    indices.put(indexName, index);
+                }
+            }
+        }
+        if (index == null)
+            throw new RuntimeException("Index " + indexName + " does not exist");
+        handle.setIndexBuilding(indexName);
+        index.setBuilding(true);
+        return new IndexBackfill(this, index, indexBackfillThreads, indexBackfillBatch, indexBackfillRate).run();
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     public <T extends Element> Index<T> getIndex(String indexName, Class<T> indexClass) {
         try {
             Get get = new Get(Bytes.toBytes(indexName));
-            Result res = handle.ivtable.get(get);
+            Result res = handle.ivtable().get(get);
             if (res.isEmpty()) {
                 return null;
             }
-            String clazz = Bytes.toString(res.getValue(Bytes.toBytes(handle.ivnameClass), null));
+            String clazz = Bytes.toString(res.getValue(handle.ivfamilyClass, null));
             Class c;
             if (clazz.equals(HBaseHelper.vertexClass)) {
                 c = Vertex.class;
@@ -295,6 +671,7 @@ public class HBaseGraph implements Graph, IndexableGraph {
 
             ConcurrentHashMap<String, HBaseHelper.IndexTableStruct> indexTables = handle.getAutomaticIndexTables(indexName);
             HBaseIndex<T> index = new HBaseIndex<T>(this, indexName, c, indexTables);
+            index.setBuilding(handle.isIndexBuilding(indexName));
             indices.put(index.getIndexName(), index);
             return index;
         } catch (IOException e) {
@@ -308,10 +685,10 @@ public class HBaseGraph implements Graph, IndexableGraph {
         try {
             List<Index<? extends Element>> indexes = new ArrayList<Index<? extends Element>>();
             Scan vscan = new Scan();
-            ResultScanner vscanner = handle.ivtable.getScanner(vscan);
+            ResultScanner vscanner = handle.ivtable().getScanner(vscan);
             for (Result res : vscanner) {
                 String indexName = Bytes.toString(res.getRow());
-                String clazz = Bytes.toString(res.getValue(Bytes.toBytes(handle.ivnameClass), null));
+                String clazz = Bytes.toString(res.getValue(handle.ivfamilyClass, null));
                 Class c;
                 if (clazz.equals(HBaseHelper.vertexClass)) {
                     c = Vertex.class;
@@ -322,7 +699,9 @@ public class HBaseGraph implements Graph, IndexableGraph {
                 }
 
                 ConcurrentHashMap<String, HBaseHelper.IndexTableStruct> indexTables = handle.getAutomaticIndexTables(indexName);
-                indexes.add(new HBaseIndex(this, indexName, c, indexTables));
+                HBaseIndex index = new HBaseIndex(this, indexName, c, indexTables);
+                index.setBuilding(handle.isIndexBuilding(indexName));
+                indexes.add(index);
             }
             vscanner.close();
             return indexes;
@@ -0,0 +1,537 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.davidgreco.graphbase.blueprints;
+
+import com.tinkerpop.blueprints.pgm.Element;
+import com.tinkerpop.blueprints.pgm.Index;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeSet;
+
+public class HBaseGraphMigrations {
+
+    private static final int batchSize = 1000;
+
+    private HBaseGraphMigrations() {
+    }
+
+    //edge_properties qualifiers: property key + edge local id -> edge local id + property key
+    public static long prefixEdgePropertiesWithLocalIds(HBaseGraph graph) {
+        HBaseHelper handle = graph.handle;
+        byte[] outEdgesFamily = handle.vfamilyOutEdges;
+        byte[] edgePropertiesFamily = handle.vfamilyEdgeProperties;
+        ResultScanner scanner = null;
+        try {
+            HTable writeTable = new HTable(handle.vtables().getConfiguration(), handle.vtables().getTableName());
+            writeTable.setAutoFlush(false);
+            Scan scan = new Scan();
+            scan.addFamily(outEdgesFamily);
+            scan.addFamily(edgePropertiesFamily);
+            scan.setCaching(100);
+            scanner = handle.vtable().getScanner(scan);
+            long rewritten = 0;
+            List<Delete> deletes = new ArrayList<Delete>();
+            for (Result result : scanner) {
+                NavigableMap<byte[], byte[]> outEdges = result.getFamilyMap(outEdgesFamily);
+                NavigableMap<byte[], byte[]> edgeProperties = result.getFamilyMap(edgePropertiesFamily);
+                if (outEdges == null || edgeProperties == null)
+                    continue;
+                Set<byte[]> localIds = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+                for (byte[] qualifier : outEdges.keySet()) {
+                    localIds.add(Util.getAdjacencyStruct(qualifier).edgeLocalId);
+                }
+                Put put = new Put(result.getRow());
+                Delete delete = new Delete(result.getRow());
+                for (Map.Entry<byte[], byte[]> e : edgeProperties.entrySet()) {
+                    byte[] qualifier = e.getKey();
+                    if (qualifier.length < 8 || localIds.contains(Bytes.head(qualifier, 8)))
+                        continue;
+                    byte[] localId = Bytes.tail(qualifier, 8);
+                    if (!localIds.contains(localId))
+                        continue;
+                    String key = Bytes.toString(qualifier, 0, qualifier.length - 8);
+                    put.add(edgePropertiesFamily, Util.generateEdgePropertyId(key, localId), e.getValue());
+                    delete.deleteColumns(edgePropertiesFamily, qualifier);
+                    rewritten++;
+                }
+                if (!put.isEmpty()) {
+                    writeTable.put(put);
+                    deletes.add(delete);
+                }
+                if (deletes.size() >= batchSize) {
+                    //The new cells must be stored before the old ones go away
+                    writeTable.flushCommits();
+                    writeTable.delete(deletes);
+                    deletes.clear();
+                }
+            }
+            writeTable.flushCommits();
+            if (!deletes.isEmpty())
+                writeTable.delete(deletes);
+            writeTable.close();
+            graph.getElementCache().invalidateAll();
+            return rewritten;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (scanner != null)
+                scanner.close();
+        }
+    }
+
+    //Adds the labels to the _inEdges cells
+    public static long denormalizeInEdgeLabels(HBaseGraph graph) {
+        prefixEdgePropertiesWithLocalIds(graph);
+        HBaseHelper handle = graph.handle;
+        byte[] inEdgesFamily = handle.vfamilyInEdges;
+        byte[] edgePropertiesFamily = handle.vfamilyEdgeProperties;
+        ResultScanner scanner = null;
+        try {
+            HTable writeTable = new HTable(handle.vtables().getConfiguration(), handle.vtables().getTableName());
+            writeTable.setAutoFlush(false);
+            Scan scan = new Scan();
+            scan.addFamily(inEdgesFamily);
+            scan.setCaching(100);
+            scanner = handle.vtable().getScanner(scan);
+            long rewritten = 0;
+            List<byte[]> rows = new ArrayList<byte[]>();
+            List<byte[]> edgeIds = new ArrayList<byte[]>();
+            List<Get> gets = new ArrayList<Get>();
+            for (Result result : scanner) {
+                for (Map.Entry<byte[], byte[]> e : result.getFamilyMap(inEdgesFamily).entrySet()) {
+                    if (Util.getInEdgeLabel(e.getValue()) != null)
+                        continue;
+                    Util.EdgeIdStruct struct = Util.getEdgeIdStruct(e.getValue());
+                    Get get = new Get(struct.vertexId);
+                    get.addColumn(edgePropertiesFamily, Util.generateEdgePropertyId(handle.keys.getLabelId(), struct.edgeLocalId));
+                    rows.add(result.getRow());
+                    edgeIds.add(e.getValue());
+                    gets.add(get);
+                }
+                if (gets.size() >= batchSize) {
+                    rewritten += rewriteInEdges(handle, writeTable, rows, edgeIds, gets);
+                }
+            }
+            rewritten += rewriteInEdges(handle, writeTable, rows, edgeIds, gets);
+            writeTable.flushCommits();
+            writeTable.close();
+            graph.getElementCache().invalidateAll();
+            return rewritten;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (scanner != null)
+                scanner.close();
+        }
+    }
+
+    private static long rewriteInEdges(HBaseHelper handle, HTable writeTable, List<byte[]> rows, List<byte[]> edgeIds, List<Get> gets) throws IOException {
+        if (gets.isEmpty())
+            return 0;
+        byte[] inEdgesFamily = handle.vfamilyInEdges;
+        byte[] edgePropertiesFamily = handle.vfamilyEdgeProperties;
+        Result[] labels = handle.vtable().get(gets);
+        long rewritten = 0;
+        for (int i = 0; i < labels.length; i++) {
+            Util.EdgeIdStruct struct = Util.getEdgeIdStruct(edgeIds.get(i));
+            byte[] blabel = labels[i].getValue(edgePropertiesFamily, Util.generateEdgePropertyId(handle.keys.getLabelId(), struct.edgeLocalId));
+            if (blabel == null) {
+                //Dangling in-edge, the out-vertex side is gone
+                continue;
+            }
+            Put put = new Put(rows.get(i));
+            put.add(inEdgesFamily, struct.edgeLocalId, Util.generateInEdgeValue(edgeIds.get(i), Bytes.toString(blabel)));
+            writeTable.put(put);
+            rewritten++;
+        }
+        rows.clear();
+        edgeIds.clear();
+        gets.clear();
+        return rewritten;
+    }
+
+    //Prefixes the adjacency qualifiers by the edge label
+    public static long prefixAdjacencyWithLabels(HBaseGraph graph) {
+        denormalizeInEdgeLabels(graph);
+        HBaseHelper handle = graph.handle;
+        byte[] outEdgesFamily = handle.vfamilyOutEdges;
+        byte[] inEdgesFamily = handle.vfamilyInEdges;
+        byte[] edgePropertiesFamily = handle.vfamilyEdgeProperties;
+        ResultScanner scanner = null;
+        try {
+            HTable writeTable = new HTable(handle.vtables().getConfiguration(), handle.vtables().getTableName());
+            writeTable.setAutoFlush(false);
+            Scan scan = new Scan();
+            scan.addFamily(outEdgesFamily);
+            scan.addFamily(inEdgesFamily);
+            scan.addFamily(edgePropertiesFamily);
+            scan.setCaching(100);
+            scanner = handle.vtable().getScanner(scan);
+            long rewritten = 0;
+            List<Delete> deletes = new ArrayList<Delete>();
+            for (Result result : scanner) {
+                Put put = new Put(result.getRow());
+                Delete delete = new Delete(result.getRow());
+                NavigableMap<byte[], byte[]> outEdges = result.getFamilyMap(outEdgesFamily);
+                if (outEdges != null) {
+                    for (Map.Entry<byte[], byte[]> e : outEdges.entrySet()) {
+                        if (Util.getAdjacencyStruct(e.getKey()).label != null)
+                            continue;
+                        byte[] blabel = result.getValue(edgePropertiesFamily, Util.generateEdgePropertyId(handle.keys.getLabelId(), e.getKey()));
+                        if (blabel == null)
+                            continue;
+                        put.add(outEdgesFamily, Util.generateAdjacencyQualifier(Bytes.toString(blabel), e.getKey()), e.getValue());
+                        delete.deleteColumns(outEdgesFamily, e.getKey());
+                        rewritten++;
+                    }
+                }
+                NavigableMap<byte[], byte[]> inEdges = result.getFamilyMap(inEdgesFamily);
+                if (inEdges != null) {
+                    for (Map.Entry<byte[], byte[]> e : inEdges.entrySet()) {
+                        if (Util.getAdjacencyStruct(e.getKey()).label != null)
+                            continue;
+                        String label = Util.getInEdgeLabel(e.getValue());
+                        if (label == null)
+                            continue;
+                        put.add(inEdgesFamily, Util.generateAdjacencyQualifier(label, e.getKey()), e.getValue());
+                        delete.deleteColumns(inEdgesFamily, e.getKey());
+                        rewritten++;
+                    }
+                }
+                if (!put.isEmpty()) {
+                    writeTable.put(put);
+                    deletes.add(delete);
+                }
+                if (deletes.size() >= batchSize) {
+                    //The new cells must be stored before the old ones go away
+                    writeTable.flushCommits();
+                    writeTable.delete(deletes);
+                    deletes.clear();
+                }
+            }
+            writeTable.flushCommits();
+            if (!deletes.isEmpty())
+                writeTable.delete(deletes);
+            writeTable.close();
+            graph.getElementCache().invalidateAll();
+            return rewritten;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (scanner != null)
+                scanner.close();
+        }
+    }
+
+    //Adds the counts family to the old index tables and fills the counters
+    public static long countIndexEntries(HBaseGraph graph) {
+        long written = 0;
+        for (Index index : graph.indices.values()) {
+            HBaseIndex<?> hindex = (HBaseIndex<?>) index;
+            for (String key : hindex.getAutoIndexKeys()) {
+                HBaseHelper.IndexTableStruct struct = hindex.getIndexTable(key);
+                if (struct.indexColumnNameCounts == null)
+                    graph.handle.addIndexCountsFamily(hindex.getIndexName(), key, struct);
+                written += countIndexEntries(struct);
+            }
+        }
+        return written;
+    }
+
+    private static long countIndexEntries(HBaseHelper.IndexTableStruct struct) {
+        ResultScanner scanner = null;
+        try {
+            HTable writeTable = new HTable(struct.indexTable.getConfiguration(), struct.indexTable.getTableName());
+            writeTable.setAutoFlush(false);
+            Scan scan = createIndexScan(struct);
+            scan.setFilter(new KeyOnlyFilter());
+            //A row can be larger than a Result, its entries then come in consecutive Results
+            scan.setBatch(batchSize);
+            scan.setCaching(10);
+            scanner = struct.indexTable().getScanner(scan);
+            long written = 0;
+            byte[] row = null;
+            long count = 0;
+            for (Result result : scanner) {
+                if (row != null && !Bytes.equals(row, result.getRow())) {
+                    writeTable.put(createCountPut(struct, row, count));
+                    written++;
+                    count = 0;
+                }
+                row = result.getRow();
+                count += result.size();
+            }
+            if (row != null) {
+                writeTable.put(createCountPut(struct, row, count));
+                written++;
+            }
+            writeTable.flushCommits();
+            writeTable.close();
+            return written;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (scanner != null)
+                scanner.close();
+        }
+    }
+
+    public static long sortIndexKeys(HBaseGraph graph) {
+        long rewritten = 0;
+        for (Index index : new ArrayList<Index>(graph.indices.values())) {
+            HBaseIndex<?> hindex = (HBaseIndex<?>) index;
+            Map<String, HBaseHelper.IndexTableStruct> oldTables = new HashMap<String, HBaseHelper.IndexTableStruct>();
+            Map<String, HBaseHelper.IndexTableStruct> newTables = new HashMap<String, HBaseHelper.IndexTableStruct>();
+            for (String key : hindex.getAutoIndexKeys()) {
+                HBaseHelper.IndexTableStruct struct = hindex.getIndexTable(key);
+                if (struct.sortable)
+                    continue;
+                HBaseHelper.IndexTableStruct sortable = graph.handle.createSortableIndexTable(hindex.getIndexName(), key);
+                rewritten += copyIndexRows(struct, sortable);
+                countIndexEntries(sortable);
+                oldTables.put(key, struct);
+                newTables.put(key, sortable);
+            }
+            if (newTables.isEmpty())
+                continue;
+            graph.handle.replaceIndexTables(hindex.getIndexName(), oldTables, newTables);
+            //Reloads the index from its new tables
+            graph.getIndex(hindex.getIndexName(), hindex.getIndexClass());
+        }
+        return rewritten;
+    }
+
+    public static long shareIndexTable(HBaseGraph graph, int regions) {
+        graph.handle.createSharedIndexTable(regions);
+        long rewritten = 0;
+        for (Index index : new ArrayList<Index>(graph.indices.values())) {
+            HBaseIndex<?> hindex = (HBaseIndex<?>) index;
+            Map<String, HBaseHelper.IndexTableStruct> oldTables = new HashMap<String, HBaseHelper.IndexTableStruct>();
+            Map<String, HBaseHelper.IndexTableStruct> newTables = new HashMap<String, HBaseHelper.IndexTableStruct>();
+            for (String key : hindex.getAutoIndexKeys()) {
+                HBaseHelper.IndexTableStruct struct = hindex.getIndexTable(key);
+                if (struct.rowPrefix.length > 0)
+                    continue;
+                HBaseHelper.IndexTableStruct shared = graph.handle.createSharedIndexStruct(hindex.getIndexName(), key);
+                //Rows left by an interrupted migration
+                graph.handle.deleteSharedIndexRows(shared);
+                rewritten += copyIndexRows(struct, shared);
+                countIndexEntries(shared);
+                oldTables.put(key, struct);
+                newTables.put(key, shared);
+            }
+            if (newTables.isEmpty())
+                continue;
+            graph.handle.replaceIndexTables(hindex.getIndexName(), oldTables, newTables);
+            //Reloads the index from the shared table
+            graph.getIndex(hindex.getIndexName(), hindex.getIndexClass());
+        }
+        return rewritten;
+    }
+
+    //The source is left untouched, it must have been migrated to the label-prefixed adjacency first. The automatic
+    //indices are created again on the target in its shared index table, the index tables per key being named after
+    //the index alone, and filled from the copy
+    public static long copyToCompactSchema(HBaseGraph graph, String name) {
+        checkAdjacencyLabels(graph);
+        HBaseHelper handle = graph.handle;
+        Configuration conf = new Configuration(handle.vtables().getConfiguration());
+        conf.set(HBaseGraph.SCHEMA, "compact");
+        conf.set(HBaseGraph.INDEX_STORAGE, "shared");
+        conf.setBoolean(HBaseGraph.INDEX_ASYNC, false);
+        conf.setBoolean(HBaseGraph.INDEX_BACKFILL, false);
+        HBaseGraph target = new HBaseGraph(conf, name);
+        HBaseHelper targetHandle = target.handle;
+        byte[] propertiesFamily = handle.vfamilyProperties;
+        byte[] outEdgesFamily = handle.vfamilyOutEdges;
+        byte[] inEdgesFamily = handle.vfamilyInEdges;
+        byte[] edgePropertiesFamily = handle.vfamilyEdgeProperties;
+        ResultScanner scanner = null;
+        try {
+            if (!targetHandle.keys.isCompact())
+                throw new RuntimeException("The graph " + name + " already exists with the default schema");
+            HTable writeTable = new HTable(conf, targetHandle.vtables().getTableName());
+            writeTable.setAutoFlush(false);
+            Scan scan = new Scan();
+            scan.setBatch(batchSize);
+            scan.setCaching(10);
+            scan.setCacheBlocks(false);
+            scanner = handle.vtable().getScanner(scan);
+            long copied = 0;
+            for (Result result : scanner) {
+                Put put = new Put(result.getRow());
+                for (KeyValue kv : result.raw()) {
+                    byte[] family = kv.getFamily();
+                    byte[] qualifier = kv.getQualifier();
+                    if (Bytes.equals(family, propertiesFamily)) {
+                        if (qualifier.length > 0)
+                            qualifier = targetHandle.keys.getOrCreateId(handle.keys.getKey(qualifier));
+                        put.add(targetHandle.vfamilyProperties, qualifier, kv.getTimestamp(), kv.getValue());
+                    } else if (Bytes.equals(family, edgePropertiesFamily)) {
+                        String key = handle.keys.getKey(Util.getEdgePropertyKeyId(qualifier));
+                        qualifier = Util.generateEdgePropertyId(targetHandle.keys.getOrCreateId(key), Util.getEdgePropertyLocalId(qualifier));
+                        put.add(targetHandle.vfamilyEdgeProperties, qualifier, kv.getTimestamp(), kv.getValue());
+                    } else if (Bytes.equals(family, outEdgesFamily)) {
+                        put.add(targetHandle.vfamilyOutEdges, qualifier, kv.getTimestamp(), kv.getValue());
+                    } else if (Bytes.equals(family, inEdgesFamily)) {
+                        put.add(targetHandle.vfamilyInEdges, qualifier, kv.getTimestamp(), kv.getValue());
+                    } else {
+                        continue;
+                    }
+                    copied++;
+                }
+                if (!put.isEmpty())
+                    writeTable.put(put);
+            }
+            writeTable.flushCommits();
+            writeTable.close();
+            for (Index<? extends Element> index : graph.getIndices()) {
+                HBaseIndex<? extends Element> hindex = (HBaseIndex<? extends Element>) index;
+                target.createAutomaticIndex(hindex.getIndexName(), hindex.getIndexClass(), hindex.getAutoIndexKeys());
+                target.buildIndex(hindex.getIndexName());
+            }
+            return copied;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (scanner != null)
+                scanner.close();
+            target.shutdown();
+        }
+    }
+
+    private static void checkAdjacencyLabels(HBaseGraph graph) {
+        HBaseHelper handle = graph.handle;
+        Scan scan = new Scan();
+        scan.addFamily(handle.vfamilyOutEdges);
+        scan.addFamily(handle.vfamilyInEdges);
+        scan.setFilter(new KeyOnlyFilter());
+        scan.setCaching(100);
+        scan.setCacheBlocks(false);
+        try {
+            ResultScanner scanner = handle.vtable().getScanner(scan);
+            try {
+                for (Result result : scanner) {
+                    for (KeyValue kv : result.raw()) {
+                        if (Util.getAdjacencyStruct(kv.getQualifier()).label == null)
+                            throw new RuntimeException("The graph has edges without label prefix, run the adjacency-labels migration first");
+                    }
+                }
+            } finally {
+                scanner.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Scan createIndexScan(HBaseHelper.IndexTableStruct struct) {
+        Scan scan = struct.rowPrefix.length == 0 ? new Scan() : new Scan(struct.rowPrefix, Util.getPrefixEnd(struct.rowPrefix));
+        scan.addFamily(struct.indexesFamily());
+        return scan;
+    }
+
+    private static long copyIndexRows(HBaseHelper.IndexTableStruct from, HBaseHelper.IndexTableStruct to) {
+        ResultScanner scanner = null;
+        try {
+            HTable writeTable = new HTable(to.indexTable.getConfiguration(), to.indexTable.getTableName());
+            writeTable.setAutoFlush(false);
+            Scan scan = createIndexScan(from);
+            scan.setBatch(batchSize);
+            scan.setCaching(10);
+            scanner = from.indexTable().getScanner(scan);
+            byte[] family = to.indexesFamily();
+            long rewritten = 0;
+            byte[] row = null;
+            byte[] newRow = null;
+            for (Result result : scanner) {
+                if (row == null || !Bytes.equals(row, result.getRow())) {
+                    row = result.getRow();
+                    byte[] value = Bytes.tail(row, row.length - from.rowPrefix.length);
+                    if (!from.sortable)
+                        value = Util.typedObjectToSortableBytes(Util.bytesToTypedObject(value));
+                    newRow = Bytes.add(to.rowPrefix, value);
+                    rewritten++;
+                }
+                Put put = new Put(newRow);
+                for (KeyValue kv : result.raw()) {
+                    put.add(family, kv.getQualifier(), kv.getValue());
+                }
+                writeTable.put(put);
+            }
+            writeTable.flushCommits();
+            writeTable.close();
+            return rewritten;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (scanner != null)
+                scanner.close();
+        }
+    }
+
+    private static Put createCountPut(HBaseHelper.IndexTableStruct struct, byte[] row, long count) {
+        Put put = new Put(row);
+        put.add(struct.countsFamily(), HConstants.EMPTY_BYTE_ARRAY, Bytes.toBytes(count));
+        return put;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 4 || args.length > 5) {
+            System.err.println("Usage: HBaseGraphMigrations <zookeeper quorum> <zookeeper port> <graph name> <migration> [argument]");
+            System.err.println("Migrations: edge-property-layout, inedge-labels, adjacency-labels, index-counts, sortable-index-keys,");
+            System.err.println("            shared-index-table, creating the shared table with the argument regions, 16 by default,");
+            System.err.println("            compact-schema, copying the graph and its indices to the argument graph name, which");
+            System.err.println("            needs adjacency-labels first and stores the indices in its shared table");
+            System.exit(1);
+        }
+        HBaseGraph graph = new HBaseGraph(args[0], args[1], args[2]);
+        String migration = args[3];
+        long count;
+        if (migration.equals("edge-property-layout")) {
+            count = prefixEdgePropertiesWithLocalIds(graph);
+        } else if (migration.equals("inedge-labels")) {
+            count = denormalizeInEdgeLabels(graph);
+        } else if (migration.equals("adjacency-labels")) {
+            count = prefixAdjacencyWithLabels(graph);
+        } else if (migration.equals("index-counts")) {
+            count = countIndexEntries(graph);
+        } else if (migration.equals("sortable-index-keys")) {
+            count = sortIndexKeys(graph);
+        } else if (migration.equals("shared-index-table")) {
+            count = shareIndexTable(graph, args.length == 5 ? Integer.parseInt(args[4]) : 16);
+        } else if (migration.equals("compact-schema") && args.length == 5) {
+            count = copyToCompactSchema(graph, args[4]);
+        } else {
+            throw new RuntimeException("Unknown migration " + migration);
+        }
+        System.out.println(migration + ": rewrote " + count + " cells");
+    }
+
+}
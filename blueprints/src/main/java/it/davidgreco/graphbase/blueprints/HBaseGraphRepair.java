@@ -0,0 +1,184 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.davidgreco.graphbase.blueprints;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+//Completes or removes the edges half-written by a failed addEdge or removeEdge
+public class HBaseGraphRepair {
+
+    private static final int batchSize = 1000;
+
+    private HBaseGraphRepair() {
+    }
+
+    public static long repairEdges(HBaseGraph graph, long minAgeMillis) {
+        HBaseHelper handle = graph.handle;
+        ResultScanner scanner = null;
+        try {
+            HTable writeTable = new HTable(handle.vtables().getConfiguration(), handle.vtables().getTableName());
+            writeTable.setAutoFlush(false);
+            Scan scan = new Scan();
+            scan.addFamily(handle.vfamilyOutEdges);
+            scan.addFamily(handle.vfamilyInEdges);
+            scan.addFamily(handle.vfamilyEdgeProperties);
+            scan.setCaching(100);
+            scan.setCacheBlocks(false);
+            scanner = handle.vtable().getScanner(scan);
+            long maxTimestamp = System.currentTimeMillis() - minAgeMillis;
+            long repaired = 0;
+            List<Check> checks = new ArrayList<Check>();
+            for (Result result : scanner) {
+                for (KeyValue kv : result.raw()) {
+                    if (kv.getTimestamp() > maxTimestamp)
+                        continue;
+                    if (Bytes.equals(kv.getFamily(), handle.vfamilyOutEdges)) {
+                        checks.add(checkInEdge(handle, result, kv));
+                    } else if (Bytes.equals(kv.getFamily(), handle.vfamilyInEdges)) {
+                        checks.add(checkOutEdge(handle, kv));
+                    }
+                }
+                if (checks.size() >= batchSize) {
+                    repaired += repair(graph, writeTable, checks);
+                }
+            }
+            repaired += repair(graph, writeTable, checks);
+            writeTable.flushCommits();
+            writeTable.close();
+            graph.getElementCache().invalidateAll();
+            return repaired;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (scanner != null)
+                scanner.close();
+        }
+    }
+
+    private static class Check {
+        boolean outEdge;
+        byte[] row;
+        byte[] qualifier;
+        byte[] edgeId;
+        String label;
+        byte[] inVertexId;
+        NavigableMap<byte[], byte[]> edgeProperties;
+        Get get;
+    }
+
+    private static Check checkInEdge(HBaseHelper handle, Result row, KeyValue kv) {
+        Util.AdjacencyStruct adjacency = Util.getAdjacencyStruct(kv.getQualifier());
+        Check check = new Check();
+        check.outEdge = true;
+        check.row = kv.getRow();
+        check.qualifier = kv.getQualifier();
+        check.edgeId = Util.generateEdgeId(kv.getRow(), adjacency.edgeLocalId);
+        check.label = adjacency.label;
+        check.inVertexId = kv.getValue();
+        check.edgeProperties = new TreeMap<byte[], byte[]>(Bytes.BYTES_COMPARATOR);
+        NavigableMap<byte[], byte[]> familyMap = row.getFamilyMap(handle.vfamilyEdgeProperties);
+        if (familyMap != null) {
+            check.edgeProperties.putAll(familyMap.subMap(adjacency.edgeLocalId, true, Util.generateEdgePropertyPrefixEnd(adjacency.edgeLocalId), false));
+            if (check.label == null) {
+                byte[] blabel = familyMap.get(Util.generateEdgePropertyId(handle.keys.getLabelId(), adjacency.edgeLocalId));
+                check.label = blabel == null ? null : Bytes.toString(blabel);
+            }
+        }
+        check.get = new Get(kv.getValue());
+        check.get.addColumn(handle.vfamilyInEdges, kv.getQualifier());
+        check.get.addColumn(handle.vfamilyProperties, HConstants.EMPTY_BYTE_ARRAY);
+        return check;
+    }
+
+    private static Check checkOutEdge(HBaseHelper handle, KeyValue kv) {
+        Check check = new Check();
+        check.row = kv.getRow();
+        check.qualifier = kv.getQualifier();
+        check.get = new Get(Util.getEdgeIdStruct(Util.getInEdgeId(kv.getValue())).vertexId);
+        check.get.addColumn(handle.vfamilyOutEdges, kv.getQualifier());
+        return check;
+    }
+
+    private static long repair(HBaseGraph graph, HTable writeTable, List<Check> checks) throws IOException {
+        HBaseHelper handle = graph.handle;
+        if (checks.isEmpty())
+            return 0;
+        List<Get> gets = new ArrayList<Get>(checks.size());
+        for (Check check : checks) {
+            gets.add(check.get);
+        }
+        Result[] results = handle.vtable().get(gets);
+        long repaired = 0;
+        for (int i = 0; i < results.length; i++) {
+            Check check = checks.get(i);
+            Result other = results[i];
+            if (check.outEdge) {
+                if (other.containsColumn(handle.vfamilyInEdges, check.qualifier))
+                    continue;
+                if (!other.isEmpty() && check.label != null) {
+                    //The in-vertex is there, the edge is completed
+                    Put put = new Put(check.get.getRow());
+                    put.add(handle.vfamilyInEdges, check.qualifier, Util.generateInEdgeValue(check.edgeId, check.label));
+                    writeTable.put(put);
+                } else {
+                    Delete delete = new Delete(check.row);
+                    delete.deleteColumns(handle.vfamilyOutEdges, check.qualifier);
+                    HBaseEdge edge = graph.buildOutEdge(check.row, check.qualifier, check.inVertexId);
+                    for (Map.Entry<byte[], byte[]> e : check.edgeProperties.entrySet()) {
+                        delete.deleteColumns(handle.vfamilyEdgeProperties, e.getKey());
+                        String key = handle.keys.getKey(Util.getEdgePropertyKeyId(e.getKey()));
+                        if (!key.equals("label"))
+                            graph.indexRemove(key, Util.bytesToTypedObject(e.getValue()), edge);
+                    }
+                    writeTable.delete(delete);
+                }
+                repaired++;
+            } else {
+                if (!other.isEmpty())
+                    continue;
+                Delete delete = new Delete(check.row);
+                delete.deleteColumns(handle.vfamilyInEdges, check.qualifier);
+                writeTable.delete(delete);
+                repaired++;
+            }
+        }
+        checks.clear();
+        return repaired;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 3 || args.length > 4) {
+            System.err.println("Usage: HBaseGraphRepair <zookeeper quorum> <zookeeper port> <graph name> [min age millis]");
+            System.exit(1);
+        }
+        HBaseGraph graph = new HBaseGraph(args[0], args[1], args[2]);
+        long minAgeMillis = args.length == 4 ? Long.parseLong(args[3]) : 60000;
+        long count = repairEdges(graph, minAgeMillis);
+        System.out.println("repaired " + count + " edges");
+    }
+
+}
@@ -19,15 +19,20 @@ package it.davidgreco.graphbase.blueprints;
 import com.tinkerpop.blueprints.pgm.Element;
 import com.tinkerpop.blueprints.pgm.Vertex;
 import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.HTableDescriptor;
 import org.apache.hadoop.hbase.MasterNotRunningException;
 import org.apache.hadoop.hbase.ZooKeeperConnectionException;
 import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
 import org.apache.hadoop.hbase.util.Bytes;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
+import java.util.TreeMap;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -41,39 +46,99 @@ class HBaseHelper {
     String vnameOutEdges;
     String vnameInEdges;
     String vnameEdgeProperties;
+    byte[] ivfamilyClass;
+    private byte[] ivfamilyProperties;
+    byte[] vfamilyProperties;
+    byte[] vfamilyOutEdges;
+    byte[] vfamilyInEdges;
+    byte[] vfamilyEdgeProperties;
+    private final ConcurrentHashMap<String, byte[]> adjacencyPrefixes = new ConcurrentHashMap<String, byte[]>();
 
     private static final String separator = ".-.";
     static final String vertexClass = "vertex";
     static final String edgeClass = "edge";
+    private static final String encodingQualifier = "encoding";
+    private static final String sortableEncoding = "sortable";
+    private static final String storageQualifier = "storage";
+    private static final String stateQualifier = "state";
+    private static final String buildingState = "building";
+    private static final String checkpointQualifierPrefix = "backfill.";
+    private static final String sharedStorage = "shared";
+    private static final int maxCachedLabels = 10000;
+    private static final String compactProperties = "p";
+    private static final String compactOutEdges = "o";
+    private static final String compactInEdges = "i";
+    private static final String compactEdgeProperties = "e";
 
-    HTable vtable;
-    HTable ivtable;
+    private ThreadLocalTable vtable;
+    private ThreadLocalTable ivtable;
+    PropertyKeys keys;
+
+    HTable vtable() {
+        return vtable.get();
+    }
+
+    ThreadLocalTable vtables() {
+        return vtable;
+    }
+
+    HTable ivtable() {
+        return ivtable.get();
+    }
+
+    //For the pool threads of the graph, when their work ends
+    void releaseTables() {
+        vtable.release();
+        ivtable.release();
+        keys.release();
+    }
+
+    void closeTables() {
+        vtable.close();
+        ivtable.close();
+        keys.close();
+    }
 
     HBaseHelper(HBaseAdmin admin, String name) {
         this.admin = admin;
         this.name = name;
     }
 
-    void createTables() {
+    void createTables(int vertexRegions, boolean compact) {
         String vname = name;
         String ivname = name + "_indexes";
+        String kname = name + "_keys";
         this.ivnameClass = ivname + "_class";
         this.ivnameProperties = ivname + "_properties";
-        this.vnameProperties = vname + "_properties";
-        this.vnameOutEdges = vname + "_outEdges";
-        this.vnameInEdges = vname + "_inEdges";
-        this.vnameEdgeProperties = vname + "edge_properties";
+        this.ivfamilyClass = Bytes.toBytes(ivnameClass);
+        this.ivfamilyProperties = Bytes.toBytes(ivnameProperties);
         try {
+            if (admin.tableExists(vname))
+                compact = admin.getTableDescriptor(Bytes.toBytes(vname)).hasFamily(Bytes.toBytes(compactProperties));
+            if (compact) {
+                this.vnameProperties = compactProperties;
+                this.vnameOutEdges = compactOutEdges;
+                this.vnameInEdges = compactInEdges;
+                this.vnameEdgeProperties = compactEdgeProperties;
+            } else {
+                this.vnameProperties = vname + "_properties";
+                this.vnameOutEdges = vname + "_outEdges";
+                this.vnameInEdges = vname + "_inEdges";
+                this.vnameEdgeProperties = vname + "edge_properties";
+            }
+            this.vfamilyProperties = Bytes.toBytes(vnameProperties);
+            this.vfamilyOutEdges = Bytes.toBytes(vnameOutEdges);
+            this.vfamilyInEdges = Bytes.toBytes(vnameInEdges);
+            this.vfamilyEdgeProperties = Bytes.toBytes(vnameEdgeProperties);
             if (!admin.tableExists(vname)) {
-                admin.createTable(new HTableDescriptor(vname));
-                admin.disableTable(vname);
-                admin.addColumn(vname, new HColumnDescriptor(vnameProperties));
-                admin.addColumn(vname, new HColumnDescriptor(vnameOutEdges));
-                admin.addColumn(vname, new HColumnDescriptor(vnameInEdges));
-                admin.addColumn(vname, new HColumnDescriptor(vnameEdgeProperties));
-                admin.enableTable(vname);
+                HTableDescriptor descriptor = new HTableDescriptor(vname);
+                descriptor.addFamily(new HColumnDescriptor(vnameProperties));
+                descriptor.addFamily(new HColumnDescriptor(vnameOutEdges));
+                descriptor.addFamily(new HColumnDescriptor(vnameInEdges));
+                descriptor.addFamily(new HColumnDescriptor(vnameEdgeProperties));
+                createTable(descriptor, vertexRegions);
             }
-            this.vtable = new HTable(admin.getConfiguration(), vname);
+            this.vtable = new ThreadLocalTable(admin.getConfiguration(), vname);
 
             if (!admin.tableExists(ivname)) {
                 admin.createTable(new HTableDescriptor(ivname));
@@ -82,7 +147,18 @@ class HBaseHelper {
                 admin.addColumn(ivname, new HColumnDescriptor(ivnameProperties));
                 admin.enableTable(ivname);
             }
-            this.ivtable = new HTable(admin.getConfiguration(), ivname);
+            this.ivtable = new ThreadLocalTable(admin.getConfiguration(), ivname);
+
+            if (compact) {
+                if (!admin.tableExists(kname)) {
+                    HTableDescriptor descriptor = new HTableDescriptor(kname);
+                    descriptor.addFamily(new HColumnDescriptor(PropertyKeys.family));
+                    admin.createTable(descriptor);
+                }
+                this.keys = new PropertyKeys(new ThreadLocalTable(admin.getConfiguration(), kname));
+            } else {
+                this.keys = new PropertyKeys(null);
+            }
         } catch (MasterNotRunningException e) {
             throw new RuntimeException(e);
         } catch (ZooKeeperConnectionException e) {
@@ -92,6 +168,21 @@ class HBaseHelper {
         }
     }
 
+    //Cached for the labels seen first
+    byte[] getAdjacencyPrefix(String label) {
+        byte[] prefix = adjacencyPrefixes.get(label);
+        if (prefix == null) {
+            prefix = Util.generateAdjacencyPrefix(label);
+            if (adjacencyPrefixes.size() < maxCachedLabels)
+                adjacencyPrefixes.put(label, prefix);
+        }
+        return prefix;
+    }
+
+    byte[] generateAdjacencyQualifier(String label, byte[] localId) {
+        return Bytes.add(getAdjacencyPrefix(label), localId);
+    }
+
     void deleteTables() {
         String vname = name;
         String ivname = name + "_indexes";
@@ -122,39 +213,54 @@ class HBaseHelper {
         return "index" + separator + name + separator + key + separator + "indexes";
     }
 
-    <T extends Element> ConcurrentHashMap<String, IndexTableStruct> createAutomaticIndexTables(String name, Class<T> indexClass, Set<String> keys) {
+    String getIndexTableColumnNameCounts(String name, String key) {
+        return "index" + separator + name + separator + key + separator + "counts";
+    }
+
+    <T extends Element> ConcurrentHashMap<String, IndexTableStruct> createAutomaticIndexTables(String name, Class<T> indexClass, Set<String> keys, int sharedRegions) {
         ConcurrentHashMap<String, IndexTableStruct> indexTables = new ConcurrentHashMap<String, IndexTableStruct>();
         try {
             Get vget = new Get(Bytes.toBytes(name));
-            Result vresult = ivtable.get(vget);
+            Result vresult = ivtable().get(vget);
             if (!vresult.isEmpty()) {
                 throw new RuntimeException("An index with this name already exists");
             }
             Put put = new Put(Bytes.toBytes(name));
+            if (sharedRegions > 0)
+                createSharedIndexTable(sharedRegions);
             for (String key : keys) {
+                if (sharedRegions > 0) {
+                    IndexTableStruct struct = createSharedIndexStruct(name, key);
+                    put.add(ivfamilyProperties, Bytes.toBytes(key), struct.indexTable.getTableName());
+                    indexTables.put(key, struct);
+                    continue;
+                }
                 String tname = getIndexTableName(name, key);
                 String tcolnameIndexes = getIndexTableColumnNameIndexes(name, key);
+                String tcolnameCounts = getIndexTableColumnNameCounts(name, key);
                 if (!admin.tableExists(tname)) {
-                    admin.createTable(new HTableDescriptor(tname));
-                    admin.disableTable(tname);
-                    admin.addColumn(tname, new HColumnDescriptor(tcolnameIndexes));
-                    admin.enableTable(tname);
+                    createIndexTable(tname, tcolnameIndexes, tcolnameCounts);
                 } else {
                     throw new RuntimeException("Internal error"); //todo better error message
                 }
                 IndexTableStruct struct = new IndexTableStruct();
                 struct.indexColumnNameIndexes = tcolnameIndexes;
-                struct.indexTable = new HTable(admin.getConfiguration(), tname);
-                String c;
-                if (Vertex.class.isAssignableFrom(indexClass))
-                    c = vertexClass;
-                else
-                    c = edgeClass;
-                put.add(Bytes.toBytes(ivnameClass), null, Bytes.toBytes(c));
-                put.add(Bytes.toBytes(ivnameProperties), Bytes.toBytes(key), Bytes.toBytes(tname));
+                struct.indexColumnNameCounts = tcolnameCounts;
+                struct.indexTable = new ThreadLocalTable(admin.getConfiguration(), tname);
+                struct.sortable = true;
+                put.add(ivfamilyProperties, Bytes.toBytes(key), Bytes.toBytes(tname));
                 indexTables.put(key, struct);
             }
-            ivtable.put(put);
+            String c;
+            if (Vertex.class.isAssignableFrom(indexClass))
+                c = vertexClass;
+            else
+                c = edgeClass;
+            put.add(ivfamilyClass, null, Bytes.toBytes(c));
+            put.add(ivfamilyClass, Bytes.toBytes(encodingQualifier), Bytes.toBytes(sortableEncoding));
+            if (sharedRegions > 0)
+                put.add(ivfamilyClass, Bytes.toBytes(storageQualifier), Bytes.toBytes(sharedStorage));
+            ivtable().put(put);
             return indexTables;
         } catch (MasterNotRunningException e) {
             throw new RuntimeException(e);
@@ -169,18 +275,31 @@ class HBaseHelper {
         ConcurrentHashMap<String, IndexTableStruct> indexTables = new ConcurrentHashMap<String, IndexTableStruct>();
         try {
             Get get = new Get(Bytes.toBytes(name));
-            Result result = ivtable.get(get);
+            Result result = ivtable().get(get);
             if (result.isEmpty()) {
                 throw new RuntimeException("An index with this name does not exist");
             }
-            NavigableMap<byte[], byte[]> familyMap = result.getFamilyMap(Bytes.toBytes(ivnameProperties));
+            NavigableMap<byte[], byte[]> familyMap = result.getFamilyMap(ivfamilyProperties);
             Set<Map.Entry<byte[], byte[]>> entrySet = familyMap.entrySet();
+            //Indices created before the sortable encoding have no encoding marker
+            byte[] encoding = result.getValue(ivfamilyClass, Bytes.toBytes(encodingQualifier));
+            boolean sortable = encoding != null && Bytes.toString(encoding).equals(sortableEncoding);
+            boolean shared = isShared(result);
             for (Map.Entry<byte[], byte[]> e : entrySet) {
                 String key = Bytes.toString(e.getKey());
+                if (shared) {
+                    indexTables.put(key, createSharedIndexStruct(name, key));
+                    continue;
+                }
                 String tname = Bytes.toString(e.getValue());
                 IndexTableStruct struct = new IndexTableStruct();
                 struct.indexColumnNameIndexes = getIndexTableColumnNameIndexes(name, key);
-                struct.indexTable = new HTable(admin.getConfiguration(), tname);
+                struct.indexTable = new ThreadLocalTable(admin.getConfiguration(), tname);
+                struct.sortable = sortable;
+                //Index tables created before the counters were introduced have no counts family
+                String tcolnameCounts = getIndexTableColumnNameCounts(name, key);
+                if (struct.indexTable().getTableDescriptor().hasFamily(Bytes.toBytes(tcolnameCounts)))
+                    struct.indexColumnNameCounts = tcolnameCounts;
                 indexTables.put(key, struct);
             }
             return indexTables;
@@ -193,20 +312,231 @@ class HBaseHelper {
         }
     }
 
+    //The table is disabled while the family is added
+    void addIndexCountsFamily(String name, String key, IndexTableStruct struct) {
+        String tname = Bytes.toString(struct.indexTable.getTableName());
+        String tcolnameCounts = getIndexTableColumnNameCounts(name, key);
+        try {
+            admin.disableTable(tname);
+            admin.addColumn(tname, new HColumnDescriptor(tcolnameCounts));
+            admin.enableTable(tname);
+            struct.indexColumnNameCounts = tcolnameCounts;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void createIndexTable(String tname, String tcolnameIndexes, String tcolnameCounts) throws IOException {
+        admin.createTable(new HTableDescriptor(tname));
+        admin.disableTable(tname);
+        admin.addColumn(tname, new HColumnDescriptor(tcolnameIndexes));
+        admin.addColumn(tname, new HColumnDescriptor(tcolnameCounts));
+        admin.enableTable(tname);
+    }
+
+    IndexTableStruct createSortableIndexTable(String name, String key) {
+        String tname = getIndexTableName(name, key) + separator + sortableEncoding;
+        try {
+            if (admin.tableExists(tname)) {
+                admin.disableTable(tname);
+                admin.deleteTable(tname);
+            }
+            IndexTableStruct struct = new IndexTableStruct();
+            struct.indexColumnNameIndexes = getIndexTableColumnNameIndexes(name, key);
+            struct.indexColumnNameCounts = getIndexTableColumnNameCounts(name, key);
+            createIndexTable(tname, struct.indexColumnNameIndexes, struct.indexColumnNameCounts);
+            struct.indexTable = new ThreadLocalTable(admin.getConfiguration(), tname);
+            struct.sortable = true;
+            return struct;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    //A single row Put switches the index to the new tables, then the old ones are dropped
+    void replaceIndexTables(String name, Map<String, IndexTableStruct> oldTables, Map<String, IndexTableStruct> newTables) {
+        try {
+            Put put = new Put(Bytes.toBytes(name));
+            boolean shared = false;
+            for (Map.Entry<String, IndexTableStruct> e : newTables.entrySet()) {
+                put.add(ivfamilyProperties, Bytes.toBytes(e.getKey()), e.getValue().indexTable.getTableName());
+                shared = e.getValue().rowPrefix.length > 0;
+            }
+            put.add(ivfamilyClass, Bytes.toBytes(encodingQualifier), Bytes.toBytes(sortableEncoding));
+            if (shared)
+                put.add(ivfamilyClass, Bytes.toBytes(storageQualifier), Bytes.toBytes(sharedStorage));
+            ivtable().put(put);
+            for (IndexTableStruct struct : oldTables.values()) {
+                String tname = Bytes.toString(struct.indexTable.getTableName());
+                admin.disableTable(tname);
+                admin.deleteTable(tname);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private boolean isShared(Result indexRow) {
+        byte[] storage = indexRow.getValue(ivfamilyClass, Bytes.toBytes(storageQualifier));
+        return storage != null && Bytes.toString(storage).equals(sharedStorage);
+    }
+
+    String getSharedIndexTableName() {
+        return name + "_index_entries";
+    }
+
+    void createSharedIndexTable(int regions) {
+        String tname = getSharedIndexTableName();
+        try {
+            if (admin.tableExists(tname))
+                return;
+            HTableDescriptor descriptor = new HTableDescriptor(tname);
+            descriptor.addFamily(new HColumnDescriptor(tname + "_entries"));
+            descriptor.addFamily(new HColumnDescriptor(tname + "_counts"));
+            createTable(descriptor, regions);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void createTable(HTableDescriptor descriptor, int regions) throws IOException {
+        if (regions <= 1) {
+            admin.createTable(descriptor);
+            return;
+        }
+        byte[][] splits = new byte[regions - 1][];
+        for (int i = 1; i < regions; i++) {
+            splits[i - 1] = new byte[]{Util.getRegionStartByte(i, regions)};
+        }
+        admin.createTable(descriptor, splits);
+    }
+
+    //Rows: hash byte, index name, NUL, key, NUL, value; the values aren't salted to keep the range lookups in order
+    IndexTableStruct createSharedIndexStruct(String name, String key) {
+        if (name.indexOf(0) >= 0 || key.indexOf(0) >= 0)
+            throw new RuntimeException("The names of indices stored in the shared table can not contain the NUL character");
+        String tname = getSharedIndexTableName();
+        IndexTableStruct struct = new IndexTableStruct();
+        struct.indexColumnNameIndexes = tname + "_entries";
+        struct.indexColumnNameCounts = tname + "_counts";
+        struct.indexTable = new ThreadLocalTable(admin.getConfiguration(), tname);
+        struct.sortable = true;
+        byte[] names = Bytes.add(Bytes.toBytes(name), new byte[]{0}, Bytes.add(Bytes.toBytes(key), new byte[]{0}));
+        struct.rowPrefix = Bytes.add(new byte[]{(byte) Bytes.hashCode(names)}, names);
+        return struct;
+    }
+
+    void deleteSharedIndexRows(IndexTableStruct struct) {
+        try {
+            deleteRows(struct);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void deleteRows(IndexTableStruct struct) throws IOException {
+        Scan scan = new Scan(struct.rowPrefix, Util.getPrefixEnd(struct.rowPrefix));
+        scan.setFilter(new FirstKeyOnlyFilter());
+        scan.setCaching(1000);
+        ResultScanner scanner = struct.indexTable().getScanner(scan);
+        try {
+            List<Delete> deletes = new ArrayList<Delete>();
+            for (Result result : scanner) {
+                deletes.add(new Delete(result.getRow()));
+                if (deletes.size() == 1000) {
+                    struct.indexTable().delete(deletes);
+                    deletes.clear();
+                }
+            }
+            struct.indexTable().delete(deletes);
+        } finally {
+            scanner.close();
+        }
+    }
+
+    void setIndexBuilding(String name) {
+        try {
+            Put put = new Put(Bytes.toBytes(name));
+            put.add(ivfamilyClass, Bytes.toBytes(stateQualifier), Bytes.toBytes(buildingState));
+            ivtable().put(put);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    boolean isIndexBuilding(String name) {
+        try {
+            Get get = new Get(Bytes.toBytes(name));
+            get.addColumn(ivfamilyClass, Bytes.toBytes(stateQualifier));
+            byte[] state = ivtable().get(get).value();
+            return state != null && Bytes.toString(state).equals(buildingState);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    void setIndexBuilt(String name) {
+        try {
+            Delete delete = new Delete(Bytes.toBytes(name));
+            delete.deleteColumns(ivfamilyClass, Bytes.toBytes(stateQualifier));
+            for (byte[] partition : getIndexCheckpoints(name).keySet()) {
+                delete.deleteColumns(ivfamilyClass, Bytes.add(Bytes.toBytes(checkpointQualifierPrefix), partition));
+            }
+            ivtable().delete(delete);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    //By region start key
+    Map<byte[], byte[]> getIndexCheckpoints(String name) {
+        try {
+            Map<byte[], byte[]> checkpoints = new TreeMap<byte[], byte[]>(Bytes.BYTES_COMPARATOR);
+            Get get = new Get(Bytes.toBytes(name));
+            get.addFamily(ivfamilyClass);
+            NavigableMap<byte[], byte[]> familyMap = ivtable().get(get).getFamilyMap(ivfamilyClass);
+            if (familyMap == null)
+                return checkpoints;
+            byte[] prefix = Bytes.toBytes(checkpointQualifierPrefix);
+            for (Map.Entry<byte[], byte[]> e : familyMap.entrySet()) {
+                if (Bytes.startsWith(e.getKey(), prefix))
+                    checkpoints.put(Bytes.tail(e.getKey(), e.getKey().length - prefix.length), e.getValue());
+            }
+            return checkpoints;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    void putIndexCheckpoint(String name, byte[] partition, byte[] lastRow) {
+        try {
+            Put put = new Put(Bytes.toBytes(name));
+            put.add(ivfamilyClass, Bytes.add(Bytes.toBytes(checkpointQualifierPrefix), partition), lastRow);
+            ivtable().put(put);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     void dropIndexTables(String name) {
         try {
             Get vget = new Get(Bytes.toBytes(name));
-            Result vresult = ivtable.get(vget);
+            Result vresult = ivtable().get(vget);
             if (!vresult.isEmpty()) {
-                NavigableMap<byte[], byte[]> familyMap = vresult.getFamilyMap(Bytes.toBytes(ivnameProperties));
+                NavigableMap<byte[], byte[]> familyMap = vresult.getFamilyMap(ivfamilyProperties);
                 Set<Map.Entry<byte[], byte[]>> entrySet = familyMap.entrySet();
+                boolean shared = isShared(vresult);
                 for (Map.Entry<byte[], byte[]> e : entrySet) {
+                    if (shared) {
+                        deleteRows(createSharedIndexStruct(name, Bytes.toString(e.getKey())));
+                        continue;
+                    }
                     String tname = Bytes.toString(e.getValue());
                     admin.disableTable(tname);
                     admin.deleteTable(tname);
                 }
                 Delete del = new Delete(vget.getRow());
-                ivtable.delete(del);
+                ivtable().delete(del);
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -215,7 +545,30 @@ class HBaseHelper {
 
     static class IndexTableStruct {
         String indexColumnNameIndexes;
-        HTable indexTable;
+        //Null for the tables created before the counters
+        String indexColumnNameCounts;
+        ThreadLocalTable indexTable;
+        boolean sortable;
+        //Empty if the table isn't shared
+        byte[] rowPrefix = HConstants.EMPTY_BYTE_ARRAY;
+        private byte[] indexesFamily;
+        private byte[] countsFamily;
+
+        HTable indexTable() {
+            return indexTable.get();
+        }
+
+        byte[] indexesFamily() {
+            if (indexesFamily == null)
+                indexesFamily = Bytes.toBytes(indexColumnNameIndexes);
+            return indexesFamily;
+        }
+
+        byte[] countsFamily() {
+            if (countsFamily == null)
+                countsFamily = Bytes.toBytes(indexColumnNameCounts);
+            return countsFamily;
+        }
     }
 
 }
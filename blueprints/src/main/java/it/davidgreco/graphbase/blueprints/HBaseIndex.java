@@ -17,54 +17,32 @@
 package it.davidgreco.graphbase.blueprints;
 
 import com.tinkerpop.blueprints.pgm.*;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
 import org.apache.hadoop.hbase.util.Bytes;
 
 import java.io.IOException;
 import java.util.*;
 
-class HBaseIndex<T extends Element> implements AutomaticIndex<T> {
+public class HBaseIndex<T extends Element> implements AutomaticIndex<T> {
 
-    public static class HBaseIndexCloseableSequence<T> implements CloseableSequence<T> {
-
-        private final List<T> list;
-
-        public HBaseIndexCloseableSequence(List<T> list) {
-            this.list = list;
-        }
-
-        @Override
-        public void close() {
-        }
-
-        @Override
-        public Iterator<T> iterator() {
-            return list.iterator();
-        }
-
-        @Override
-        public boolean hasNext() {
-            return list.iterator().hasNext();
-        }
-
-        @Override
-        public T next() {
-            return list.iterator().next();
-        }
-
-        @Override
-        public void remove() {
-
-        }
-    }
+    private static final Log LOG = LogFactory.getLog(HBaseIndex.class);
 
     private final HBaseGraph graph;
     private final String name;
     private final Class<T> indexClass;
     private final Map<String, HBaseHelper.IndexTableStruct> indexTables;
+    private volatile boolean building;
 
     HBaseIndex(HBaseGraph graph, String name, Class<T> indexClass, Map<String, HBaseHelper.IndexTableStruct> indexTables) {
         this.graph = graph;
@@ -73,6 +51,15 @@ class HBaseIndex<T extends Element> implements AutomaticIndex<T> {
         this.indexTables = indexTables;
     }
 
+    //The lookups can miss the elements not backfilled yet
+    public boolean isBuilding() {
+        return building;
+    }
+
+    void setBuilding(boolean building) {
+        this.building = building;
+    }
+
     @Override
     public String getIndexName() {
         return name;
@@ -88,75 +75,310 @@ class HBaseIndex<T extends Element> implements AutomaticIndex<T> {
         return Index.Type.AUTOMATIC;
     }
 
+    //checkAndPut so that the counter is incremented once per entry
     @Override
     public void put(String key, Object value, T element) {
         try {
-            if (this.indexClass.isAssignableFrom(element.getClass())) {
-                HBaseHelper.IndexTableStruct struct = indexTables.get(key);
-                if (struct == null) {
-                    return;
-                }
-                Put put = new Put(Util.typedObjectToBytes(value));
-                put.add(Bytes.toBytes(struct.indexColumnNameIndexes), (byte[]) element.getId(), (byte[]) element.getId());
-                struct.indexTable.put(put);
+            Put put = createPut(key, value, element);
+            if (put == null)
+                return;
+            HBaseHelper.IndexTableStruct struct = indexTables.get(key);
+            if (struct.indexColumnNameCounts == null) {
+                struct.indexTable().put(put);
+            } else if (struct.indexTable().checkAndPut(put.getRow(), struct.indexesFamily(), (byte[]) element.getId(), null, put)) {
+                struct.indexTable().incrementColumnValue(put.getRow(), struct.countsFamily(), HConstants.EMPTY_BYTE_ARRAY, 1);
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    Put createPut(String key, Object value, Element element) {
+        if (!this.indexClass.isAssignableFrom(element.getClass())) {
+            return null;
+        }
+        HBaseHelper.IndexTableStruct struct = indexTables.get(key);
+        if (struct == null) {
+            return null;
+        }
+        Put put = new Put(encode(struct, value));
+        put.add(struct.indexesFamily(), (byte[]) element.getId(), (byte[]) element.getId());
+        return put;
+    }
+
+    byte[] getRow(String key, Object value) {
+        HBaseHelper.IndexTableStruct struct = indexTables.get(key);
+        return struct == null ? null : encode(struct, value);
+    }
+
+    HBaseHelper.IndexTableStruct getIndexTable(String key) {
+        return indexTables.get(key);
+    }
+
+    private static byte[] encode(HBaseHelper.IndexTableStruct struct, Object value) {
+        if (!struct.sortable)
+            return Util.typedObjectToBytes(value);
+        return Bytes.add(struct.rowPrefix, Util.typedObjectToSortableBytes(value));
+    }
+
+    //Read in pages, the scanner is opened on the first access
     @Override
-    @SuppressWarnings("unchecked")
     public CloseableSequence<T> get(String key, Object value) {
-        try {
-            HBaseHelper.IndexTableStruct struct = indexTables.get(key);
-            List<T> elements = new ArrayList<T>();
-            if (struct == null) {
-                return new HBaseIndexCloseableSequence<T>(elements);
+        HBaseHelper.IndexTableStruct struct = indexTables.get(key);
+        if (struct == null) {
+            return new HBaseIndexSequence<T>(this, graph, key, Collections.<KeyValue>emptyList());
+        }
+        byte[] row = encode(struct, value);
+        return new HBaseIndexSequence<T>(this, graph, key, getEntries(struct, row, Bytes.add(row, new byte[]{0}), true));
+    }
+
+    //Null bounds are open
+    public CloseableSequence<T> getRange(String key, Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+        if (from == null && to == null)
+            throw new IllegalArgumentException("A range needs at least one bound");
+        HBaseHelper.IndexTableStruct struct = getSortableIndexTable(key);
+        if (struct == null) {
+            return new HBaseIndexSequence<T>(this, graph, key, Collections.<KeyValue>emptyList());
+        }
+        byte[] start = from == null ? null : Util.typedObjectToSortableBytes(from);
+        byte[] stop = to == null ? null : Util.typedObjectToSortableBytes(to);
+        if (start != null && stop != null && start[0] != stop[0])
+            throw new IllegalArgumentException("The range bounds must have the same type");
+        if (start == null)
+            start = new byte[]{stop[0]};
+        else if (!fromInclusive)
+            start = Bytes.add(start, new byte[]{0});
+        if (stop == null)
+            stop = Util.getPrefixEnd(new byte[]{start[0]});
+        else if (toInclusive)
+            stop = Bytes.add(stop, new byte[]{0});
+        start = Bytes.add(struct.rowPrefix, start);
+        stop = Bytes.add(struct.rowPrefix, stop);
+        if (Bytes.compareTo(start, stop) >= 0) {
+            return new HBaseIndexSequence<T>(this, graph, key, Collections.<KeyValue>emptyList());
+        }
+        return new HBaseIndexSequence<T>(this, graph, key, getEntries(struct, start, stop, false));
+    }
+
+    public CloseableSequence<T> getPrefix(String key, String prefix) {
+        HBaseHelper.IndexTableStruct struct = getSortableIndexTable(key);
+        if (struct == null) {
+            return new HBaseIndexSequence<T>(this, graph, key, Collections.<KeyValue>emptyList());
+        }
+        byte[] start = Bytes.add(struct.rowPrefix, Util.typedStringPrefixToSortableBytes(prefix));
+        return new HBaseIndexSequence<T>(this, graph, key, getEntries(struct, start, Util.getPrefixEnd(start), false));
+    }
+
+    private HBaseHelper.IndexTableStruct getSortableIndexTable(String key) {
+        HBaseHelper.IndexTableStruct struct = indexTables.get(key);
+        if (struct != null && !struct.sortable)
+            throw new RuntimeException("The index " + name + " was created before the sortable encoding, see HBaseGraphMigrations");
+        return struct;
+    }
+
+    private Iterable<KeyValue> getEntries(final HBaseHelper.IndexTableStruct struct, byte[] start, byte[] stop, boolean singleRow) {
+        final Scan scan = new Scan(start, stop);
+        scan.addFamily(struct.indexesFamily());
+        //The qualifiers are the element ids, the values are not needed
+        scan.setFilter(new KeyOnlyFilter());
+        scan.setBatch(graph.indexPageSize);
+        //A single row comes one page per RPC, a range with the scan caching of the graph
+        scan.setCaching(singleRow ? 1 : graph.scanCaching);
+        return new Iterable<KeyValue>() {
+            @Override
+            public Iterator<KeyValue> iterator() {
+                return new HBaseScanSequence<KeyValue>(struct.indexTable(), scan, entryDecoder);
             }
-            Get get = new Get(Util.typedObjectToBytes(value));
-            Result result = struct.indexTable.get(get);
-            if (!result.isEmpty()) {
-                Set<Map.Entry<byte[], byte[]>> set = result.getFamilyMap(Bytes.toBytes(struct.indexColumnNameIndexes)).entrySet();
-                for (Map.Entry<byte[], byte[]> e : set) {
-                    if (Vertex.class.isAssignableFrom(this.indexClass)) {
-                        elements.add((T) graph.getVertex(e.getValue()));
-                    } else {
-                        elements.add((T) graph.getEdge(e.getValue()));
+        };
+    }
+
+    private static final HBaseScanSequence.Decoder<KeyValue> entryDecoder = new HBaseScanSequence.Decoder<KeyValue>() {
+        @Override
+        public void decode(Result result, List<KeyValue> buffer) {
+            buffer.addAll(Arrays.asList(result.raw()));
+        }
+    };
+
+    @SuppressWarnings("unchecked")
+    T createElement(byte[] id) {
+        if (Vertex.class.isAssignableFrom(this.indexClass)) {
+            HBaseVertex vertex = new HBaseVertex();
+            vertex.setId(id);
+            vertex.setGraph(graph);
+            return (T) vertex;
+        } else {
+            HBaseEdge edge = new HBaseEdge(graph);
+            edge.setId(id);
+            return (T) edge;
+        }
+    }
+
+    void removeLater(String key, List<KeyValue> stale) {
+        final HBaseHelper.IndexTableStruct struct = indexTables.get(key);
+        if (struct == null)
+            return;
+        final List<Delete> deletes = new ArrayList<Delete>(stale.size());
+        for (KeyValue entry : stale) {
+            Delete delete = new Delete(entry.getRow());
+            delete.deleteColumns(entry.getFamily(), entry.getQualifier());
+            deletes.add(delete);
+        }
+        final Configuration conf = struct.indexTable.getConfiguration();
+        final byte[] tableName = struct.indexTable.getTableName();
+        graph.getIndexRepairExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    HTable table = new HTable(conf, tableName);
+                    try {
+                        deleteEntries(table, struct, deletes);
+                    } finally {
+                        table.close();
                     }
+                } catch (IOException e) {
+                    LOG.warn("Failed to remove " + deletes.size() + " stale entries from index " + name, e);
                 }
             }
-            return new HBaseIndexCloseableSequence<T>(elements);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        });
     }
 
     @Override
-    public long count(String s, Object o) {
-        throw new RuntimeException("Not supported");
+    public long count(String key, Object value) {
+        HBaseHelper.IndexTableStruct struct = indexTables.get(key);
+        if (struct == null)
+            return 0;
+        byte[] row = encode(struct, value);
+        if (struct.indexColumnNameCounts == null) {
+            long count = 0;
+            for (KeyValue entry : getEntries(struct, row, Bytes.add(row, new byte[]{0}), true)) {
+                count++;
+            }
+            return count;
+        }
+        try {
+            Get get = new Get(row);
+            get.addColumn(struct.countsFamily(), HConstants.EMPTY_BYTE_ARRAY);
+            byte[] count = struct.indexTable().get(get).value();
+            return count == null ? 0 : Bytes.toLong(count);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     @Override
     public void remove(String key, Object value, T element) {
         try {
-            if (this.indexClass.isAssignableFrom(element.getClass())) {
-                HBaseHelper.IndexTableStruct struct = indexTables.get(key);
-                if (struct == null) {
-                    return;
-                }
-                Delete del = new Delete(Util.typedObjectToBytes(value));
-                del.deleteColumns(Bytes.toBytes(struct.indexColumnNameIndexes), (byte[]) element.getId());
-                struct.indexTable.delete(del);
+            Delete del = createDelete(key, value, element);
+            if (del == null)
+                return;
+            HBaseHelper.IndexTableStruct struct = indexTables.get(key);
+            byte[] id = (byte[]) element.getId();
+            if (struct.indexColumnNameCounts == null) {
+                struct.indexTable().delete(del);
+            } else if (struct.indexTable().checkAndDelete(del.getRow(), struct.indexesFamily(), id, id, del)) {
+                struct.indexTable().incrementColumnValue(del.getRow(), struct.countsFamily(), HConstants.EMPTY_BYTE_ARRAY, -1);
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    //The entries found by the multi-get are skipped, the missing ones are written one by one with checkAndPut like in
+    //put so that a concurrent writer of the same entry can't count it twice
+    static void putEntries(HTable table, HBaseHelper.IndexTableStruct struct, List<Put> puts) throws IOException {
+        if (struct.indexColumnNameCounts == null) {
+            table.put(puts);
+            return;
+        }
+        List<Get> gets = new ArrayList<Get>(puts.size());
+        for (Put put : puts) {
+            gets.add(createEntryGet(put.getRow(), put.getFamilyMap()));
+        }
+        Map<byte[], Long> written = new TreeMap<byte[], Long>(Bytes.BYTES_COMPARATOR);
+        Result[] results = table.get(gets);
+        for (int i = 0; i < results.length; i++) {
+            if (!results[i].isEmpty())
+                continue;
+            Put put = puts.get(i);
+            KeyValue entry = getEntry(put.getFamilyMap());
+            if (table.checkAndPut(put.getRow(), entry.getFamily(), entry.getQualifier(), null, put))
+                addCount(written, put.getRow());
+        }
+        incrementCounts(table, struct, written, 1);
+    }
+
+    //Like putEntries, the entries found are removed one by one with checkAndDelete like in remove
+    static void deleteEntries(HTable table, HBaseHelper.IndexTableStruct struct, List<Delete> deletes) throws IOException {
+        if (struct.indexColumnNameCounts == null) {
+            table.delete(deletes);
+            return;
+        }
+        List<Get> gets = new ArrayList<Get>(deletes.size());
+        for (Delete delete : deletes) {
+            gets.add(createEntryGet(delete.getRow(), delete.getFamilyMap()));
+        }
+        Map<byte[], Long> removed = new TreeMap<byte[], Long>(Bytes.BYTES_COMPARATOR);
+        Result[] results = table.get(gets);
+        for (int i = 0; i < results.length; i++) {
+            if (results[i].isEmpty())
+                continue;
+            Delete delete = deletes.get(i);
+            KeyValue entry = getEntry(delete.getFamilyMap());
+            //The entry value is the element id, as its qualifier
+            if (table.checkAndDelete(delete.getRow(), entry.getFamily(), entry.getQualifier(), entry.getQualifier(), delete))
+                addCount(removed, delete.getRow());
+        }
+        incrementCounts(table, struct, removed, -1);
+    }
+
+    private static KeyValue getEntry(Map<byte[], List<KeyValue>> familyMap) {
+        return familyMap.values().iterator().next().get(0);
+    }
+
+    private static void addCount(Map<byte[], Long> counts, byte[] row) {
+        Long count = counts.get(row);
+        counts.put(row, count == null ? 1 : count + 1);
+    }
+
+    private static Get createEntryGet(byte[] row, Map<byte[], List<KeyValue>> familyMap) {
+        Get get = new Get(row);
+        for (List<KeyValue> kvs : familyMap.values()) {
+            for (KeyValue kv : kvs) {
+                get.addColumn(kv.getFamily(), kv.getQualifier());
+            }
+        }
+        return get;
+    }
+
+    static void incrementCounts(HTable table, HBaseHelper.IndexTableStruct struct, Map<byte[], Long> counts, int sign) throws IOException {
+        for (Map.Entry<byte[], Long> e : counts.entrySet()) {
+            table.incrementColumnValue(e.getKey(), struct.countsFamily(), HConstants.EMPTY_BYTE_ARRAY, sign * e.getValue());
+        }
+    }
+
+    Delete createDelete(String key, Object value, Element element) {
+        if (!this.indexClass.isAssignableFrom(element.getClass())) {
+            return null;
+        }
+        HBaseHelper.IndexTableStruct struct = indexTables.get(key);
+        if (struct == null) {
+            return null;
+        }
+        Delete del = new Delete(encode(struct, value));
+        del.deleteColumns(struct.indexesFamily(), (byte[]) element.getId());
+        return del;
+    }
+
     @Override
     public Set<String> getAutoIndexKeys() {
         return indexTables.keySet();
     }
 
+    //They must not be in use
+    void closeTables() {
+        for (HBaseHelper.IndexTableStruct struct : indexTables.values()) {
+            struct.indexTable.close();
+        }
+    }
+
 }
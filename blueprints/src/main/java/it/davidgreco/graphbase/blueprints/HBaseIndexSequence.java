@@ -0,0 +1,180 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.davidgreco.graphbase.blueprints;
+
+import com.tinkerpop.blueprints.pgm.CloseableSequence;
+import com.tinkerpop.blueprints.pgm.Element;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+class HBaseIndexSequence<T extends Element> implements CloseableSequence<T> {
+
+    private final HBaseIndex<T> index;
+    private final HBaseGraph graph;
+    private final String key;
+    private final Iterable<KeyValue> source;
+    private Iterator<KeyValue> entries;
+    private final List<T> buffer = new ArrayList<T>();
+    private final List<KeyValue> bufferEntries = new ArrayList<KeyValue>();
+    private int position;
+    private final List<HBaseIndexSequence<T>> passes = new ArrayList<HBaseIndexSequence<T>>();
+
+    HBaseIndexSequence(HBaseIndex<T> index, HBaseGraph graph, String key, Iterable<KeyValue> source) {
+        this.index = index;
+        this.graph = graph;
+        this.key = key;
+        this.source = source;
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            if (entries == null)
+                entries = source.iterator();
+            while (position == buffer.size()) {
+                if (!entries.hasNext())
+                    return false;
+                buffer.clear();
+                bufferEntries.clear();
+                position = 0;
+                int batchSize = graph.indexVerify ? graph.indexVerifyBatch : 1;
+                while (buffer.size() < batchSize && entries.hasNext()) {
+                    KeyValue entry = entries.next();
+                    buffer.add(index.createElement(entry.getQualifier()));
+                    bufferEntries.add(entry);
+                }
+                if (graph.indexVerify)
+                    verify();
+            }
+            return true;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void verify() throws IOException {
+        byte[] kid = graph.handle.keys.getId(key);
+        List<Get> gets = new ArrayList<Get>(buffer.size());
+        for (T element : buffer) {
+            if (element instanceof HBaseVertex) {
+                Get get = graph.createMarkerGet((byte[]) element.getId());
+                if (kid != null)
+                    get.addColumn(graph.handle.vfamilyProperties, kid);
+                gets.add(get);
+            } else {
+                Util.EdgeIdStruct struct = Util.getEdgeIdStruct((byte[]) element.getId());
+                Get get = new Get(struct.vertexId);
+                get.addColumn(graph.handle.vfamilyEdgeProperties, Util.generateEdgePropertyId(graph.handle.keys.getLabelId(), struct.edgeLocalId));
+                if (kid != null)
+                    get.addColumn(graph.handle.vfamilyEdgeProperties, Util.generateEdgePropertyId(kid, struct.edgeLocalId));
+                gets.add(get);
+            }
+        }
+        Result[] results = graph.handle.vtable().get(gets);
+        List<T> existing = new ArrayList<T>(buffer.size());
+        List<KeyValue> stale = new ArrayList<KeyValue>();
+        for (int i = 0; i < results.length; i++) {
+            T element = buffer.get(i);
+            KeyValue entry = bufferEntries.get(i);
+            if (results[i] == null || results[i].isEmpty() || kid == null) {
+                stale.add(entry);
+                continue;
+            }
+            KeyValue value;
+            if (element instanceof HBaseVertex) {
+                value = results[i].getColumnLatest(graph.handle.vfamilyProperties, kid);
+            } else {
+                Util.EdgeIdStruct struct = Util.getEdgeIdStruct((byte[]) element.getId());
+                KeyValue label = results[i].getColumnLatest(graph.handle.vfamilyEdgeProperties, Util.generateEdgePropertyId(graph.handle.keys.getLabelId(), struct.edgeLocalId));
+                if (label == null) {
+                    stale.add(entry);
+                    continue;
+                }
+                ((HBaseEdge) element).setLabel(Bytes.toString(label.getValue()));
+                value = results[i].getColumnLatest(graph.handle.vfamilyEdgeProperties, Util.generateEdgePropertyId(kid, struct.edgeLocalId));
+            }
+            //The property may have changed since the entry was written, e.g. by a backfill racing a live update
+            if (value == null || !Bytes.equals(index.getRow(key, Util.bytesToTypedObject(value)), entry.getRow())) {
+                stale.add(entry);
+                continue;
+            }
+            existing.add(element);
+        }
+        if (!stale.isEmpty())
+            index.removeLater(key, stale);
+        buffer.clear();
+        buffer.addAll(existing);
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return buffer.get(position++);
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    //Every pass reads the entries again, close() closes the passes still open
+    @Override
+    public Iterator<T> iterator() {
+        for (Iterator<HBaseIndexSequence<T>> i = passes.iterator(); i.hasNext(); ) {
+            if (!i.next().isOpen())
+                i.remove();
+        }
+        HBaseIndexSequence<T> pass = new HBaseIndexSequence<T>(index, graph, key, source);
+        passes.add(pass);
+        return pass;
+    }
+
+    boolean isOpen() {
+        if (entries instanceof HBaseScanSequence && ((HBaseScanSequence) entries).isOpen())
+            return true;
+        for (HBaseIndexSequence<T> pass : passes) {
+            if (pass.isOpen())
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void close() {
+        if (entries instanceof CloseableSequence)
+            ((CloseableSequence) entries).close();
+        entries = Collections.<KeyValue>emptyList().iterator();
+        buffer.clear();
+        bufferEntries.clear();
+        position = 0;
+        for (HBaseIndexSequence<T> pass : passes) {
+            pass.close();
+        }
+        passes.clear();
+    }
+
+}
@@ -0,0 +1,107 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.davidgreco.graphbase.blueprints;
+
+import com.tinkerpop.blueprints.pgm.CloseableSequence;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+class HBaseScanSequence<T> implements CloseableSequence<T> {
+
+    interface Decoder<T> {
+        void decode(Result result, List<T> buffer) throws IOException;
+    }
+
+    private final HTable table;
+    private final Scan scan;
+    private final Decoder<T> decoder;
+    private final List<T> buffer = new ArrayList<T>();
+    private ResultScanner scanner;
+    private int position;
+    private boolean closed;
+
+    HBaseScanSequence(HTable table, Scan scan, Decoder<T> decoder) {
+        this.table = table;
+        this.scan = scan;
+        this.decoder = decoder;
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            while (position == buffer.size()) {
+                if (closed)
+                    return false;
+                if (scanner == null)
+                    scanner = table.getScanner(scan);
+                buffer.clear();
+                position = 0;
+                Result result = scanner.next();
+                if (result == null) {
+                    close();
+                    return false;
+                }
+                decoder.decode(result, buffer);
+            }
+            return true;
+        } catch (IOException e) {
+            close();
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return buffer.get(position++);
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return this;
+    }
+
+    boolean isOpen() {
+        return scanner != null;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        buffer.clear();
+        position = 0;
+        if (scanner != null) {
+            scanner.close();
+            scanner = null;
+        }
+    }
+
+}
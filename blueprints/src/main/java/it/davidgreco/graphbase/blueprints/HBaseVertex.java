@@ -17,13 +17,12 @@
 package it.davidgreco.graphbase.blueprints;
 
 import com.tinkerpop.blueprints.pgm.Edge;
-import com.tinkerpop.blueprints.pgm.Index;
-import org.apache.commons.lang.builder.EqualsBuilder;
-import org.apache.commons.lang.builder.HashCodeBuilder;
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.filter.ColumnPrefixFilter;
 import org.apache.hadoop.hbase.util.Bytes;
 
 import java.io.IOException;
@@ -33,6 +32,8 @@ class HBaseVertex implements com.tinkerpop.blueprints.pgm.Vertex {
 
     private HBaseGraph graph;
     private byte[] id;
+    private int hash;
+    private boolean created;
 
     HBaseVertex() {
     }
@@ -40,25 +41,10 @@ class HBaseVertex implements com.tinkerpop.blueprints.pgm.Vertex {
     @Override
     public Iterable<Edge> getOutEdges() {
         try {
-            Get get = new Get(id);
-            Result result = graph.handle.vtable.get(get);
+            Result result = graph.getRow(id);
             if (result.isEmpty())
                 return null;
-            Set<Map.Entry<byte[], byte[]>> set = result.getFamilyMap(Bytes.toBytes(graph.handle.vnameOutEdges)).entrySet();
-            List<Edge> outEdges = new ArrayList<Edge>();
-            for (Map.Entry<byte[], byte[]> e : set) {
-                HBaseEdge edge = new HBaseEdge(graph);
-                edge.setId(Util.generateEdgeId(id, e.getKey()));
-                edge.setOutVertex(this);
-                HBaseVertex inVertex = new HBaseVertex();
-                inVertex.setId(e.getValue());
-                inVertex.setGraph(graph);
-                edge.setInVertex(inVertex);
-                String label = Bytes.toString(result.getValue(Bytes.toBytes(graph.handle.vnameEdgeProperties), Util.generateEdgePropertyId("label", e.getKey())));
-                edge.setLabel(label);
-                outEdges.add(edge);
-            }
-            return outEdges;
+            return buildOutEdges(result.getFamilyMap(graph.handle.vfamilyOutEdges), result);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -67,27 +53,10 @@ class HBaseVertex implements com.tinkerpop.blueprints.pgm.Vertex {
     @Override
     public Iterable<Edge> getInEdges() {
         try {
-            Get get = new Get(id);
-            Result result = graph.handle.vtable.get(get);
+            Result result = graph.getRow(id);
             if (result.isEmpty())
                 return null;
-            Set<Map.Entry<byte[], byte[]>> set = result.getFamilyMap(Bytes.toBytes(graph.handle.vnameInEdges)).entrySet();
-            List<Edge> inEdges = new ArrayList<Edge>();
-            for (Map.Entry<byte[], byte[]> e : set) {
-                Util.EdgeIdStruct struct = Util.getEdgeIdStruct(e.getValue());
-                HBaseEdge edge = new HBaseEdge(graph);
-                edge.setId(e.getValue());
-                edge.setInVertex(this);
-                HBaseVertex outVertex = new HBaseVertex();
-                outVertex.setId(struct.vertexId);
-                edge.setOutVertex(outVertex);
-                Get outGet = new Get(struct.vertexId);
-                Result outResult = graph.handle.vtable.get(outGet);
-                String label = Bytes.toString(outResult.getValue(Bytes.toBytes(graph.handle.vnameEdgeProperties), Util.generateEdgePropertyId("label", e.getKey())));
-                edge.setLabel(label);
-                inEdges.add(edge);
-            }
-            return inEdges;
+            return buildInEdges(result.getFamilyMap(graph.handle.vfamilyInEdges));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -96,27 +65,7 @@ class HBaseVertex implements com.tinkerpop.blueprints.pgm.Vertex {
     @Override
     public Iterable<Edge> getOutEdges(String label) {
         try {
-            Get get = new Get(id);
-            Result result = graph.handle.vtable.get(get);
-            if (result.isEmpty())
-                return null;
-            Set<Map.Entry<byte[], byte[]>> set = result.getFamilyMap(Bytes.toBytes(graph.handle.vnameOutEdges)).entrySet();
-            List<Edge> outEdges = new ArrayList<Edge>();
-            for (Map.Entry<byte[], byte[]> e : set) {
-                HBaseEdge edge = new HBaseEdge(graph);
-                edge.setId(Util.generateEdgeId(id, e.getKey()));
-                edge.setOutVertex(this);
-                HBaseVertex inVertex = new HBaseVertex();
-                inVertex.setId(e.getValue());
-                inVertex.setGraph(graph);
-                edge.setInVertex(inVertex);
-                String l = Bytes.toString(result.getValue(Bytes.toBytes(graph.handle.vnameEdgeProperties), Util.generateEdgePropertyId("label", e.getKey())));
-                edge.setLabel(l);
-                if (l.equals(label)) {
-                    outEdges.add(edge);
-                }
-            }
-            return outEdges;
+            return buildOutEdges(getAdjacencyByLabel(graph.handle.vfamilyOutEdges, label), null);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -125,43 +74,88 @@ class HBaseVertex implements com.tinkerpop.blueprints.pgm.Vertex {
     @Override
     public Iterable<Edge> getInEdges(String label) {
         try {
-            Get get = new Get(id);
-            Result result = graph.handle.vtable.get(get);
-            if (result.isEmpty())
-                return null;
-            Set<Map.Entry<byte[], byte[]>> set = result.getFamilyMap(Bytes.toBytes(graph.handle.vnameInEdges)).entrySet();
-            List<Edge> inEdges = new ArrayList<Edge>();
-            for (Map.Entry<byte[], byte[]> e : set) {
-                Util.EdgeIdStruct struct = Util.getEdgeIdStruct(e.getValue());
-                HBaseEdge edge = new HBaseEdge(this.graph);
-                edge.setId(e.getValue());
-                edge.setInVertex(this);
-                HBaseVertex outVertex = new HBaseVertex();
-                outVertex.setId(struct.vertexId);
-                edge.setOutVertex(outVertex);
-                Get outGet = new Get(struct.vertexId);
-                Result outResult = graph.handle.vtable.get(outGet);
-                String l = Bytes.toString(outResult.getValue(Bytes.toBytes(graph.handle.vnameEdgeProperties), Util.generateEdgePropertyId("label", e.getKey())));
-                edge.setLabel(l);
-                if (l.equals(label)) {
-                    inEdges.add(edge);
-                }
-            }
-            return inEdges;
+            return buildInEdges(getAdjacencyByLabel(graph.handle.vfamilyInEdges, label));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private NavigableMap<byte[], byte[]> getAdjacencyByLabel(byte[] bfamily, String label) throws IOException {
+        byte[] prefix = graph.handle.getAdjacencyPrefix(label);
+        Result cached = graph.cache.get(id);
+        if (cached != null) {
+            NavigableMap<byte[], byte[]> familyMap = cached.getFamilyMap(bfamily);
+            if (familyMap == null)
+                return new TreeMap<byte[], byte[]>(Bytes.BYTES_COMPARATOR);
+            return familyMap.subMap(prefix, true, Util.getPrefixEnd(prefix), false);
+        }
+        Get get = new Get(id);
+        get.addFamily(bfamily);
+        get.setFilter(new ColumnPrefixFilter(prefix));
+        Result result = graph.handle.vtable().get(get);
+        if (result.isEmpty())
+            return new TreeMap<byte[], byte[]>(Bytes.BYTES_COMPARATOR);
+        return result.getFamilyMap(bfamily);
+    }
+
+    //The row is only read for the adjacency layout predating label prefixes
+    private List<Edge> buildOutEdges(NavigableMap<byte[], byte[]> cells, Result row) throws IOException {
+        List<Edge> outEdges = new ArrayList<Edge>();
+        for (Map.Entry<byte[], byte[]> e : cells.entrySet()) {
+            Util.AdjacencyStruct struct = Util.getAdjacencyStruct(e.getKey());
+            HBaseEdge edge = new HBaseEdge(graph);
+            edge.setId(Util.generateEdgeId(id, struct.edgeLocalId));
+            edge.setOutVertex(this);
+            HBaseVertex inVertex = new HBaseVertex();
+            inVertex.setId(e.getValue());
+            inVertex.setGraph(graph);
+            edge.setInVertex(inVertex);
+            String label = struct.label;
+            if (label == null) {
+                if (row == null)
+                    row = graph.getRow(id);
+                label = Bytes.toString(row.getValue(graph.handle.vfamilyEdgeProperties, Util.generateEdgePropertyId(graph.handle.keys.getLabelId(), struct.edgeLocalId)));
+            }
+            edge.setLabel(label);
+            outEdges.add(edge);
+        }
+        return outEdges;
+    }
+
+    private List<Edge> buildInEdges(NavigableMap<byte[], byte[]> cells) throws IOException {
+        List<Edge> inEdges = new ArrayList<Edge>();
+        for (Map.Entry<byte[], byte[]> e : cells.entrySet()) {
+            byte[] edgeId = Util.getInEdgeId(e.getValue());
+            Util.EdgeIdStruct struct = Util.getEdgeIdStruct(edgeId);
+            HBaseEdge edge = new HBaseEdge(graph);
+            edge.setId(edgeId);
+            edge.setInVertex(this);
+            HBaseVertex outVertex = new HBaseVertex();
+            outVertex.setId(struct.vertexId);
+            outVertex.setGraph(graph);
+            edge.setOutVertex(outVertex);
+            String label = Util.getInEdgeLabel(e.getValue());
+            if (label == null) {
+                Result outResult = graph.getRow(struct.vertexId);
+                label = Bytes.toString(outResult.getValue(graph.handle.vfamilyEdgeProperties, Util.generateEdgePropertyId(graph.handle.keys.getLabelId(), struct.edgeLocalId)));
+            }
+            edge.setLabel(label);
+            inEdges.add(edge);
+        }
+        return inEdges;
+    }
+
     @Override
     public Object getProperty(String key) {
         try {
-            Get get = new Get(id);
-            Result result = graph.handle.vtable.get(get);
-            byte[] bvalue = result.getValue(Bytes.toBytes(graph.handle.vnameProperties), Bytes.toBytes(key));
-            if (bvalue == null)
+            byte[] qualifier = graph.handle.keys.getId(key);
+            if (qualifier == null)
                 return null;
-            return Util.bytesToTypedObject(bvalue);
+            Result result = graph.getRow(id);
+            KeyValue kv = result.getColumnLatest(graph.handle.vfamilyProperties, qualifier);
+            if (kv == null)
+                return null;
+            return Util.bytesToTypedObject(kv);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -170,14 +164,13 @@ class HBaseVertex implements com.tinkerpop.blueprints.pgm.Vertex {
     @Override
     public Set<String> getPropertyKeys() {
         try {
-            Get get = new Get(id);
-            Result result = graph.handle.vtable.get(get);
-            NavigableMap<byte[], byte[]> familyMap = result.getFamilyMap(Bytes.toBytes(graph.handle.vnameProperties));
+            Result result = graph.getRow(id);
+            NavigableMap<byte[], byte[]> familyMap = result.getFamilyMap(graph.handle.vfamilyProperties);
             Set<String> keys = new TreeSet<String>();
             Set<byte[]> bkeys = familyMap.keySet();
             for (byte[] bkey : bkeys) {
                 if (bkey.length != 0) {
-                    keys.add(Bytes.toString(bkey));
+                    keys.add(graph.handle.keys.getKey(bkey));
                 }
             }
             return keys;
@@ -187,50 +180,49 @@ class HBaseVertex implements com.tinkerpop.blueprints.pgm.Vertex {
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     public void setProperty(String key, Object value) {
         try {
             byte[] bvalue = Util.typedObjectToBytes(value);
+            byte[] qualifier = graph.handle.keys.getOrCreateId(key);
             Put put = new Put(id);
-            put.add(Bytes.toBytes(graph.handle.vnameProperties), Bytes.toBytes(key), bvalue);
-            boolean res = graph.handle.vtable.checkAndPut(id, Bytes.toBytes(graph.handle.vnameProperties), Bytes.toBytes(key), null, put);
+            put.add(graph.handle.vfamilyProperties, qualifier, bvalue);
+            boolean res = graph.handle.vtable().checkAndPut(id, graph.handle.vfamilyProperties, qualifier, null, put);
+            graph.invalidate(id);
             if (!res) {
                 //I remove the old property from the index
                 Object oldValue = this.getProperty(key);
                 //Automatic indices update
-                for (Index e : graph.indices.values()) {
-                    e.remove(key, oldValue, this);
-                }
-                graph.handle.vtable.put(put);
+                graph.indexRemove(key, oldValue, this);
+                graph.handle.vtable().put(put);
+                graph.invalidate(id);
             }
             //Automatic indices update
-            for (Index e : graph.indices.values()) {
-                e.put(key, value, this);
-            }
+            graph.indexPut(key, value, this);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     public Object removeProperty(String key) {
         try {
+            byte[] qualifier = graph.handle.keys.getId(key);
+            if (qualifier == null)
+                return null;
             Get get = new Get(id);
-            Result result = graph.handle.vtable.get(get);
-            byte[] bvalue = result.getValue(Bytes.toBytes(graph.handle.vnameProperties), Bytes.toBytes(key));
+            Result result = graph.handle.vtable().get(get);
+            byte[] bvalue = result.getValue(graph.handle.vfamilyProperties, qualifier);
             if (bvalue == null)
                 return null;
             Delete delete = new Delete(get.getRow());
-            delete.deleteColumns(Bytes.toBytes(graph.handle.vnameProperties), Bytes.toBytes(key));
+            delete.deleteColumns(graph.handle.vfamilyProperties, qualifier);
             Object value = Util.bytesToTypedObject(bvalue);
 
             //Automatic indices update
-            for (Index e : graph.indices.values()) {
-                e.remove(key, value, this);
-            }
+            graph.indexRemove(key, value, this);
             //
-            graph.handle.vtable.delete(delete);
+            graph.handle.vtable().delete(delete);
+            graph.invalidate(id);
             return value;
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -244,12 +236,21 @@ class HBaseVertex implements com.tinkerpop.blueprints.pgm.Vertex {
 
     void setId(byte[] id) {
         this.id = id;
+        this.hash = 0;
     }
 
     void setGraph(HBaseGraph graph) {
         this.graph = graph;
     }
 
+    void setCreated(boolean created) {
+        this.created = created;
+    }
+
+    boolean isCreated(HBaseGraph graph) {
+        return created && this.graph == graph;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj == null) {
@@ -261,17 +262,17 @@ class HBaseVertex implements com.tinkerpop.blueprints.pgm.Vertex {
         if (obj.getClass() != getClass()) {
             return false;
         }
-        HBaseVertex rhs = (HBaseVertex) obj;
-        return new EqualsBuilder()
-                .append(id, rhs.id)
-                .isEquals();
+        return Bytes.equals(id, ((HBaseVertex) obj).id);
     }
 
     @Override
     public int hashCode() {
-        return new HashCodeBuilder(99, 33)
-                .append(id)
-                .toHashCode();
+        int h = hash;
+        if (h == 0) {
+            h = Bytes.hashCode(id);
+            hash = h;
+        }
+        return h;
     }
 
 }
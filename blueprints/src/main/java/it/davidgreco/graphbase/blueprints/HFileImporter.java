@@ -0,0 +1,276 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.davidgreco.graphbase.blueprints;
+
+import com.tinkerpop.blueprints.pgm.Element;
+import com.tinkerpop.blueprints.pgm.Index;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.io.hfile.HFile;
+import org.apache.hadoop.hbase.mapreduce.LoadIncrementalHFiles;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.MD5Hash;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+//Writes sorted HFiles and bulk loads them, bypassing the region servers write path
+public class HFileImporter {
+
+    public static final String IMPORT_CHUNK_SIZE = "graphbase.import.chunksize";
+    public static final String IMPORT_DEFAULT_LABEL = "graphbase.import.defaultlabel";
+
+    private static final Log LOG = LogFactory.getLog(HFileImporter.class);
+
+    private final HBaseGraph graph;
+    private final HBaseHelper handle;
+    private final Configuration conf;
+    private final Path outputDir;
+    private final FileSystem fs;
+    private final int chunkSize;
+    private final String defaultLabel;
+    private final Map<String, List<KeyValue>> cells = new HashMap<String, List<KeyValue>>();
+    private long timestamp;
+    private int bufferedCells;
+    private long vertexCount;
+    private long edgeCount;
+    private long fileCount;
+
+    public HFileImporter(HBaseGraph graph, Path outputDir) {
+        this.graph = graph;
+        this.handle = graph.handle;
+        this.conf = handle.vtables().getConfiguration();
+        this.outputDir = outputDir;
+        this.chunkSize = conf.getInt(IMPORT_CHUNK_SIZE, 1000000);
+        this.defaultLabel = conf.get(IMPORT_DEFAULT_LABEL, "edge");
+        try {
+            this.fs = outputDir.getFileSystem(conf);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static byte[] getVertexId(String key) {
+        return MD5Hash.digest(key).getDigest();
+    }
+
+    public void importFile(File file) {
+        try {
+            if (fs.exists(outputDir))
+                throw new RuntimeException("The output directory " + outputDir + " already exists");
+            timestamp = System.currentTimeMillis();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                int lineNumber = 0;
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    line = line.trim();
+                    if (line.length() == 0 || line.startsWith("#"))
+                        continue;
+                    parseLine(line, lineNumber);
+                    if (bufferedCells >= chunkSize)
+                        writeChunk();
+                }
+            } finally {
+                reader.close();
+            }
+            writeChunk();
+            new LoadIncrementalHFiles(conf).doBulkLoad(outputDir, handle.vtable());
+            fs.delete(outputDir, true);
+            graph.getElementCache().invalidateAll();
+            //The HFiles bypass the automatic indices
+            for (Index<? extends Element> index : graph.getIndices()) {
+                graph.buildIndex(index.getIndexName());
+            }
+            LOG.info(this);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public long getVertexCount() {
+        return vertexCount;
+    }
+
+    public long getEdgeCount() {
+        return edgeCount;
+    }
+
+    public long getFileCount() {
+        return fileCount;
+    }
+
+    @Override
+    public String toString() {
+        return "HFileImporter[vertexes=" + vertexCount + ", edges=" + edgeCount + ", hfiles=" + fileCount + "]";
+    }
+
+    private void parseLine(String line, int lineNumber) {
+        if (line.startsWith("v,")) {
+            String[] fields = line.split(",");
+            if (fields.length < 2)
+                throw new RuntimeException("Malformed vertex at line " + lineNumber + ": " + line);
+            byte[] id = addVertex(fields[1]);
+            for (int i = 2; i < fields.length; i++) {
+                String[] property = parseProperty(fields[i], lineNumber);
+                add(id, handle.vnameProperties, handle.keys.getOrCreateId(property[0]), parseValue(property, lineNumber));
+            }
+            vertexCount++;
+        } else if (line.startsWith("e,")) {
+            String[] fields = line.split(",");
+            if (fields.length < 4)
+                throw new RuntimeException("Malformed edge at line " + lineNumber + ": " + line);
+            byte[] edgeLocalId = addEdge(fields[1], fields[2], fields[3]);
+            byte[] outVertexId = getVertexId(fields[1]);
+            for (int i = 4; i < fields.length; i++) {
+                String[] property = parseProperty(fields[i], lineNumber);
+                add(outVertexId, handle.vnameEdgeProperties, Util.generateEdgePropertyId(handle.keys.getOrCreateId(property[0]), edgeLocalId), parseValue(property, lineNumber));
+            }
+        } else {
+            String[] fields = line.split("\\s+");
+            if (fields.length < 2 || fields.length > 3)
+                throw new RuntimeException("Malformed edge at line " + lineNumber + ": " + line);
+            addEdge(fields[0], fields[1], fields.length == 3 ? fields[2] : defaultLabel);
+        }
+    }
+
+    //key=value is a string, key:type=value a value of the given type
+    private String[] parseProperty(String field, int lineNumber) {
+        int separator = field.indexOf('=');
+        if (separator <= 0)
+            throw new RuntimeException("Malformed property at line " + lineNumber + ": " + field);
+        String key = field.substring(0, separator);
+        String type = "string";
+        int typeSeparator = key.lastIndexOf(':');
+        if (typeSeparator > 0) {
+            type = key.substring(typeSeparator + 1);
+            key = key.substring(0, typeSeparator);
+        }
+        return new String[]{key, type, field.substring(separator + 1)};
+    }
+
+    private byte[] parseValue(String[] property, int lineNumber) {
+        String type = property[1];
+        String value = property[2];
+        try {
+            if (type.equals("string"))
+                return Util.typedObjectToBytes(value);
+            else if (type.equals("long"))
+                return Util.typedObjectToBytes(Long.parseLong(value));
+            else if (type.equals("int"))
+                return Util.typedObjectToBytes(Integer.parseInt(value));
+            else if (type.equals("short"))
+                return Util.typedObjectToBytes(Short.parseShort(value));
+            else if (type.equals("float"))
+                return Util.typedObjectToBytes(Float.parseFloat(value));
+            else if (type.equals("double"))
+                return Util.typedObjectToBytes(Double.parseDouble(value));
+            else if (type.equals("boolean") && (value.equals("true") || value.equals("false")))
+                return Util.typedObjectToBytes(Boolean.valueOf(value));
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("Malformed " + type + " property at line " + lineNumber + ": " + value, e);
+        }
+        throw new RuntimeException("Malformed " + type + " property at line " + lineNumber + ": " + value);
+    }
+
+    private byte[] addVertex(String key) {
+        byte[] id = getVertexId(key);
+        add(id, handle.vnameProperties, HConstants.EMPTY_BYTE_ARRAY, HConstants.EMPTY_BYTE_ARRAY);
+        return id;
+    }
+
+    private byte[] addEdge(String outKey, String inKey, String label) {
+        byte[] outVertexId = addVertex(outKey);
+        byte[] inVertexId = addVertex(inKey);
+        byte[] edgeLocalId = Util.generateEdgeLocalId();
+        byte[] edgeId = Util.generateEdgeId(outVertexId, edgeLocalId);
+        byte[] adjacencyQualifier = handle.generateAdjacencyQualifier(label, edgeLocalId);
+        add(outVertexId, handle.vnameOutEdges, adjacencyQualifier, inVertexId);
+        add(outVertexId, handle.vnameEdgeProperties, Util.generateEdgePropertyId(handle.keys.getLabelId(), edgeLocalId), Bytes.toBytes(label));
+        add(inVertexId, handle.vnameInEdges, adjacencyQualifier, Util.generateInEdgeValue(edgeId, label));
+        edgeCount++;
+        return edgeLocalId;
+    }
+
+    private void add(byte[] row, String family, byte[] qualifier, byte[] value) {
+        List<KeyValue> familyCells = cells.get(family);
+        if (familyCells == null) {
+            familyCells = new ArrayList<KeyValue>();
+            cells.put(family, familyCells);
+        }
+        familyCells.add(new KeyValue(row, Bytes.toBytes(family), qualifier, timestamp, value));
+        bufferedCells++;
+    }
+
+    //A cell repeated in the chunk is written once, with the value read last
+    private void writeChunk() throws IOException {
+        for (Map.Entry<String, List<KeyValue>> e : cells.entrySet()) {
+            List<KeyValue> familyCells = e.getValue();
+            if (familyCells.isEmpty())
+                continue;
+            Collections.sort(familyCells, KeyValue.COMPARATOR);
+            HColumnDescriptor descriptor = handle.vtable().getTableDescriptor().getFamily(Bytes.toBytes(e.getKey()));
+            Path familyDir = new Path(outputDir, e.getKey());
+            fs.mkdirs(familyDir);
+            HFile.Writer writer = new HFile.Writer(fs, StoreFile.getUniqueFile(fs, familyDir), descriptor.getBlocksize(),
+                    descriptor.getCompression(), KeyValue.KEY_COMPARATOR);
+            try {
+                for (int i = 0; i < familyCells.size(); i++) {
+                    KeyValue kv = familyCells.get(i);
+                    if (i + 1 < familyCells.size() && KeyValue.COMPARATOR.compare(kv, familyCells.get(i + 1)) == 0)
+                        continue;
+                    writer.append(kv);
+                }
+                writer.appendFileInfo(StoreFile.BULKLOAD_TIME_KEY, Bytes.toBytes(System.currentTimeMillis()));
+                writer.appendFileInfo(StoreFile.MAJOR_COMPACTION_KEY, Bytes.toBytes(false));
+            } finally {
+                writer.close();
+            }
+            familyCells.clear();
+            fileCount++;
+        }
+        bufferedCells = 0;
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 5) {
+            System.err.println("Usage: HFileImporter <zookeeper quorum> <zookeeper port> <graph name> <input file> <output dir>");
+            System.exit(1);
+        }
+        HBaseGraph graph = new HBaseGraph(args[0], args[1], args[2]);
+        HFileImporter importer = new HFileImporter(graph, new Path(args[4]));
+        importer.importFile(new File(args[3]));
+        System.out.println(importer);
+    }
+
+}
@@ -0,0 +1,235 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.davidgreco.graphbase.blueprints;
+
+import com.tinkerpop.blueprints.pgm.Element;
+import com.tinkerpop.blueprints.pgm.Vertex;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+//Checkpointed per region, so an interrupted backfill resumes where it stopped
+class IndexBackfill {
+
+    private static final Log LOG = LogFactory.getLog(IndexBackfill.class);
+
+    private final HBaseGraph graph;
+    private final HBaseIndex<?> index;
+    private final int threads;
+    private final int batchSize;
+    private final Throttle throttle;
+    private final byte[] family;
+
+    IndexBackfill(HBaseGraph graph, HBaseIndex<?> index, int threads, int batchSize, int rowsPerSecond) {
+        this.graph = graph;
+        this.index = index;
+        this.threads = threads;
+        this.batchSize = batchSize;
+        this.throttle = new Throttle(rowsPerSecond);
+        this.family = isVertexIndex() ? graph.handle.vfamilyProperties : graph.handle.vfamilyEdgeProperties;
+    }
+
+    private boolean isVertexIndex() {
+        return Vertex.class.isAssignableFrom(index.getIndexClass());
+    }
+
+    long run() {
+        String name = index.getIndexName();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            Map<byte[], byte[]> checkpoints = graph.handle.getIndexCheckpoints(name);
+            Scan template = new Scan();
+            template.addFamily(family);
+            template.setCaching(batchSize);
+            template.setCacheBlocks(false);
+            List<Scan> scans = new ParallelScan<Result>(graph.handle.vtables(), template, null, threads).partitions();
+            List<Future<Long>> futures = new ArrayList<Future<Long>>();
+            for (final Scan scan : scans) {
+                final byte[] partition = scan.getStartRow();
+                byte[] checkpoint = checkpoints.get(partition);
+                if (checkpoint != null) {
+                    if (scan.getStopRow().length > 0 && Bytes.compareTo(checkpoint, scan.getStopRow()) >= 0)
+                        continue;
+                    scan.setStartRow(Bytes.add(checkpoint, new byte[]{0}));
+                }
+                futures.add(pool.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        return backfill(partition, scan);
+                    }
+                }));
+            }
+            long rows = 0;
+            for (Future<Long> future : futures) {
+                rows += future.get();
+            }
+            graph.handle.setIndexBuilt(name);
+            index.setBuilding(false);
+            LOG.info("Backfilled index " + name + ", " + rows + " rows scanned");
+            return rows;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+            awaitTermination(pool);
+        }
+    }
+
+    //The workers stop at the end of their batch, none must write once run returns
+    private static void awaitTermination(ExecutorService pool) {
+        boolean interrupted = Thread.interrupted();
+        while (true) {
+            try {
+                if (pool.awaitTermination(1, TimeUnit.SECONDS))
+                    break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private long backfill(byte[] partition, Scan scan) throws IOException, InterruptedException {
+        HTable table = new HTable(graph.handle.vtables().getConfiguration(), graph.handle.vtables().getTableName());
+        Map<String, HTable> indexTables = new HashMap<String, HTable>();
+        Map<String, HBaseHelper.IndexTableStruct> structs = new HashMap<String, HBaseHelper.IndexTableStruct>();
+        Map<String, List<Put>> puts = new HashMap<String, List<Put>>();
+        ResultScanner scanner = table.getScanner(scan);
+        try {
+            long rows = 0;
+            int batchRows = 0;
+            byte[] lastRow = null;
+            for (Result result : scanner) {
+                for (KeyValue kv : result.raw()) {
+                    addPut(kv, indexTables, structs, puts);
+                }
+                lastRow = result.getRow();
+                rows++;
+                if (++batchRows == batchSize) {
+                    flush(indexTables, structs, puts);
+                    graph.handle.putIndexCheckpoint(index.getIndexName(), partition, lastRow);
+                    //Stopped by HBaseGraph.shutdown, the checkpoint lets buildIndex resume
+                    if (Thread.currentThread().isInterrupted())
+                        throw new InterruptedException();
+                    throttle.acquire(batchRows);
+                    batchRows = 0;
+                }
+            }
+            flush(indexTables, structs, puts);
+            if (lastRow != null)
+                graph.handle.putIndexCheckpoint(index.getIndexName(), partition, lastRow);
+            return rows;
+        } finally {
+            scanner.close();
+            table.close();
+            for (HTable indexTable : indexTables.values()) {
+                indexTable.close();
+            }
+            graph.handle.releaseTables();
+        }
+    }
+
+    private void addPut(KeyValue kv, Map<String, HTable> indexTables, Map<String, HBaseHelper.IndexTableStruct> structs,
+                        Map<String, List<Put>> puts) throws IOException {
+        String key;
+        Element element;
+        if (isVertexIndex()) {
+            if (kv.getQualifierLength() == 0)
+                return;
+            key = graph.handle.keys.getKey(kv.getQualifier());
+            HBaseVertex vertex = new HBaseVertex();
+            vertex.setId(kv.getRow());
+            vertex.setGraph(graph);
+            element = vertex;
+        } else {
+            key = graph.handle.keys.getKey(Util.getEdgePropertyKeyId(kv.getQualifier()));
+            if (key.equals("label"))
+                return;
+            HBaseEdge edge = new HBaseEdge(graph);
+            edge.setId(Util.generateEdgeId(kv.getRow(), Util.getEdgePropertyLocalId(kv.getQualifier())));
+            element = edge;
+        }
+        HBaseHelper.IndexTableStruct struct = index.getIndexTable(key);
+        if (struct == null)
+            return;
+        Put put = index.createPut(key, Util.bytesToTypedObject(kv), element);
+        if (put == null)
+            return;
+        String tableName = Bytes.toString(struct.indexTable.getTableName());
+        List<Put> tablePuts = puts.get(tableName);
+        if (tablePuts == null) {
+            tablePuts = new ArrayList<Put>();
+            puts.put(tableName, tablePuts);
+            structs.put(tableName, struct);
+            indexTables.put(tableName, new HTable(struct.indexTable.getConfiguration(), struct.indexTable.getTableName()));
+        }
+        tablePuts.add(put);
+    }
+
+    private void flush(Map<String, HTable> indexTables, Map<String, HBaseHelper.IndexTableStruct> structs,
+                       Map<String, List<Put>> puts) throws IOException {
+        for (Map.Entry<String, List<Put>> e : puts.entrySet()) {
+            if (e.getValue().isEmpty())
+                continue;
+            HBaseIndex.putEntries(indexTables.get(e.getKey()), structs.get(e.getKey()), e.getValue());
+            e.getValue().clear();
+        }
+    }
+
+    private static class Throttle {
+
+        private final int rowsPerSecond;
+        private long next;
+
+        Throttle(int rowsPerSecond) {
+            this.rowsPerSecond = rowsPerSecond;
+            this.next = System.nanoTime();
+        }
+
+        void acquire(int rows) throws InterruptedException {
+            if (rowsPerSecond <= 0)
+                return;
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                if (next - now < 0)
+                    next = now;
+                wait = next - now;
+                next += rows * 1000000000L / rowsPerSecond;
+            }
+            if (wait > 0)
+                TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+}
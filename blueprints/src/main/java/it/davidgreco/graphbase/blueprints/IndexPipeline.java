@@ -0,0 +1,417 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.davidgreco.graphbase.blueprints;
+
+import com.eaio.uuid.UUID;
+import com.tinkerpop.blueprints.pgm.Element;
+import com.tinkerpop.blueprints.pgm.Index;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+//Async index updates, logged locally and replayed after a crash
+class IndexPipeline {
+
+    private static final Log LOG = LogFactory.getLog(IndexPipeline.class);
+
+    private static final byte putUpdate = 1;
+    private static final byte removeUpdate = 2;
+    private static final byte vertexElement = 1;
+    private static final byte edgeElement = 2;
+    private static final long retryMillis = 1000;
+
+    private final HBaseGraph graph;
+    private final BlockingQueue<Update> queue;
+    private final int batchSize;
+    private final File logDir;
+    private final boolean logSync;
+    private final int retries;
+    private final Map<String, HTable> tables = new HashMap<String, HTable>();
+    private final Object lock = new Object();
+    private long pending;
+    private IOException failure;
+    private boolean keepLog;
+    private File logFile;
+    private RandomAccessFile log;
+    private FileLock logLock;
+    private Thread worker;
+    private volatile boolean closed;
+
+    private static class Update {
+        byte type;
+        String key;
+        Object value;
+        Element element;
+    }
+
+    private static class IndexEntry {
+        final byte[] row;
+        final byte[] id;
+
+        IndexEntry(byte[] row, byte[] id) {
+            this.row = row;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof IndexEntry))
+                return false;
+            IndexEntry other = (IndexEntry) o;
+            return Bytes.equals(row, other.row) && Bytes.equals(id, other.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(row) + Arrays.hashCode(id);
+        }
+    }
+
+    IndexPipeline(HBaseGraph graph, int queueSize, int batchSize, String logDir, boolean logSync, int retries) {
+        this.graph = graph;
+        this.queue = new ArrayBlockingQueue<Update>(queueSize);
+        this.batchSize = batchSize;
+        this.logDir = logDir == null ? null : new File(logDir);
+        this.logSync = logSync;
+        this.retries = retries;
+    }
+
+    void start() {
+        try {
+            if (logDir != null) {
+                logDir.mkdirs();
+                replayLogs();
+                logFile = new File(logDir, getLogPrefix() + new UUID());
+                log = new RandomAccessFile(logFile, "rw");
+                logLock = log.getChannel().lock();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    work();
+                } finally {
+                    graph.handle.releaseTables();
+                }
+            }
+        }, "graphbase-index-" + Bytes.toString(graph.handle.vtables().getTableName()));
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    void put(String key, Object value, Element element) {
+        add(putUpdate, key, value, element);
+    }
+
+    void remove(String key, Object value, Element element) {
+        add(removeUpdate, key, value, element);
+    }
+
+    private void add(byte type, String key, Object value, Element element) {
+        if (closed)
+            throw new RuntimeException("The index pipeline is closed");
+        Update update = new Update();
+        update.type = type;
+        update.key = key;
+        update.value = value;
+        update.element = element;
+        try {
+            synchronized (lock) {
+                if (log != null)
+                    append(update);
+                pending++;
+            }
+            queue.put(update);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    //Throws if a batch failed since the last flush
+    void flush() {
+        synchronized (lock) {
+            while (pending > 0) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+            }
+            if (failure != null) {
+                IOException e = failure;
+                failure = null;
+                throw new RuntimeException("Failed to write the index updates", e);
+            }
+        }
+    }
+
+    //The log is kept if a batch failed
+    void close() {
+        if (closed)
+            return;
+        RuntimeException failed = null;
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            failed = e;
+        }
+        closed = true;
+        worker.interrupt();
+        try {
+            worker.join();
+            for (HTable table : tables.values()) {
+                table.close();
+            }
+            if (log != null) {
+                logLock.release();
+                log.close();
+                //A log holding failed updates is left for the next graph to replay
+                if (!isKeepLog())
+                    logFile.delete();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failed != null)
+            throw failed;
+    }
+
+    private boolean isKeepLog() {
+        synchronized (lock) {
+            return keepLog;
+        }
+    }
+
+    private void work() {
+        List<Update> batch = new ArrayList<Update>(batchSize);
+        while (!closed) {
+            try {
+                Update first = queue.poll(retryMillis, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                IOException error = null;
+                for (int attempt = 0; ; attempt++) {
+                    try {
+                        apply(batch);
+                        break;
+                    } catch (IOException e) {
+                        if (attempt >= retries || closed) {
+                            error = e;
+                            break;
+                        }
+                        LOG.warn("Failed to write " + batch.size() + " index updates, retrying", e);
+                        Thread.sleep(retryMillis);
+                    }
+                }
+                done(batch.size(), error);
+                batch.clear();
+            } catch (InterruptedException e) {
+                //Interrupted by close, the queue is already drained
+            }
+        }
+    }
+
+    private void done(int count, IOException error) {
+        synchronized (lock) {
+            pending -= count;
+            if (error != null) {
+                LOG.error("Failed to write " + count + " index updates" + (log != null ? ", they're kept in " + logFile : ""), error);
+                failure = error;
+                keepLog = true;
+            }
+            if (pending == 0) {
+                if (log != null && !keepLog) {
+                    try {
+                        log.setLength(0);
+                    } catch (IOException e) {
+                        LOG.warn("Failed to truncate the index log " + logFile, e);
+                    }
+                }
+                lock.notifyAll();
+            }
+        }
+    }
+
+    //Only the last update of each index entry is kept
+    private void apply(List<Update> batch) throws IOException {
+        Map<String, HBaseHelper.IndexTableStruct> structs = new HashMap<String, HBaseHelper.IndexTableStruct>();
+        Map<String, Map<IndexEntry, Row>> rows = new HashMap<String, Map<IndexEntry, Row>>();
+        for (Update update : batch) {
+            for (Index index : graph.indices.values()) {
+                HBaseIndex hindex = (HBaseIndex) index;
+                Row row = update.type == putUpdate ? hindex.createPut(update.key, update.value, update.element) : hindex.createDelete(update.key, update.value, update.element);
+                if (row == null)
+                    continue;
+                HBaseHelper.IndexTableStruct struct = hindex.getIndexTable(update.key);
+                String tableName = Bytes.toString(struct.indexTable.getTableName());
+                Map<IndexEntry, Row> tableRows = rows.get(tableName);
+                if (tableRows == null) {
+                    tableRows = new HashMap<IndexEntry, Row>();
+                    rows.put(tableName, tableRows);
+                    structs.put(tableName, struct);
+                }
+                tableRows.put(new IndexEntry(row.getRow(), (byte[]) update.element.getId()), row);
+            }
+        }
+        for (Map.Entry<String, Map<IndexEntry, Row>> e : rows.entrySet()) {
+            HBaseHelper.IndexTableStruct struct = structs.get(e.getKey());
+            List<Put> puts = new ArrayList<Put>();
+            List<Delete> deletes = new ArrayList<Delete>();
+            for (Row row : e.getValue().values()) {
+                if (row instanceof Put)
+                    puts.add((Put) row);
+                else
+                    deletes.add((Delete) row);
+            }
+            HTable table = getTable(e.getKey(), struct);
+            if (!deletes.isEmpty())
+                HBaseIndex.deleteEntries(table, struct, deletes);
+            if (!puts.isEmpty())
+                HBaseIndex.putEntries(table, struct, puts);
+        }
+    }
+
+    private HTable getTable(String tableName, HBaseHelper.IndexTableStruct struct) throws IOException {
+        HTable table = tables.get(tableName);
+        if (table == null) {
+            table = new HTable(struct.indexTable.getConfiguration(), struct.indexTable.getTableName());
+            tables.put(tableName, table);
+        }
+        return table;
+    }
+
+    private String getLogPrefix() {
+        return Bytes.toString(graph.handle.vtables().getTableName()) + ".";
+    }
+
+    //Log files are named <graph>.<uuid>
+    private boolean isGraphLog(File file) {
+        String name = file.getName();
+        int separator = name.lastIndexOf('.');
+        return separator >= 0 && name.substring(0, separator + 1).equals(getLogPrefix());
+    }
+
+    private void append(Update update) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(update.type);
+        out.writeUTF(update.key);
+        byte[] value = Util.typedObjectToBytes(update.value);
+        out.writeInt(value.length);
+        out.write(value);
+        out.writeByte(update.element instanceof HBaseVertex ? vertexElement : edgeElement);
+        byte[] id = (byte[]) update.element.getId();
+        out.writeInt(id.length);
+        out.write(id);
+        out.flush();
+        log.seek(log.length());
+        log.write(bytes.toByteArray());
+        if (logSync)
+            log.getChannel().force(false);
+    }
+
+    //A partly written last record is ignored
+    private void replayLogs() throws IOException {
+        File[] files = logDir.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            if (!isGraphLog(file))
+                continue;
+            RandomAccessFile orphan = new RandomAccessFile(file, "rw");
+            try {
+                FileChannel channel = orphan.getChannel();
+                FileLock orphanLock;
+                try {
+                    orphanLock = channel.tryLock();
+                } catch (OverlappingFileLockException e) {
+                    //Held by another graph of this JVM
+                    continue;
+                }
+                if (orphanLock == null)
+                    continue;
+                List<Update> updates = readLog(file);
+                LOG.info("Replaying " + updates.size() + " index updates from " + file);
+                for (int i = 0; i < updates.size(); i += batchSize) {
+                    apply(updates.subList(i, Math.min(updates.size(), i + batchSize)));
+                }
+                orphanLock.release();
+            } finally {
+                orphan.close();
+            }
+            file.delete();
+        }
+    }
+
+    private List<Update> readLog(File file) throws IOException {
+        List<Update> updates = new ArrayList<Update>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                Update update = new Update();
+                update.type = in.readByte();
+                update.key = in.readUTF();
+                byte[] value = new byte[in.readInt()];
+                in.readFully(value);
+                byte elementType = in.readByte();
+                byte[] id = new byte[in.readInt()];
+                in.readFully(id);
+                update.value = Util.bytesToTypedObject(value);
+                if (elementType == vertexElement) {
+                    HBaseVertex vertex = new HBaseVertex();
+                    vertex.setId(id);
+                    vertex.setGraph(graph);
+                    update.element = vertex;
+                } else {
+                    HBaseEdge edge = new HBaseEdge(graph);
+                    edge.setId(id);
+                    update.element = edge;
+                }
+                updates.add(update);
+            }
+        } catch (EOFException e) {
+            return updates;
+        } finally {
+            in.close();
+        }
+    }
+
+}
@@ -0,0 +1,263 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.davidgreco.graphbase.blueprints;
+
+import com.tinkerpop.blueprints.pgm.CloseableSequence;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+//One scanner per region on a bounded pool
+class ParallelScan<T> {
+
+    private final ThreadLocalTable table;
+    private final Scan template;
+    private final HBaseScanSequence.Decoder<T> decoder;
+    private final int threads;
+
+    ParallelScan(ThreadLocalTable table, Scan template, HBaseScanSequence.Decoder<T> decoder, int threads) {
+        this.table = table;
+        this.template = template;
+        this.decoder = decoder;
+        this.threads = threads;
+    }
+
+    List<Scan> partitions() throws IOException {
+        Pair<byte[][], byte[][]> keys = table.get().getStartEndKeys();
+        byte[] start = template.getStartRow();
+        byte[] stop = template.getStopRow();
+        List<Scan> scans = new ArrayList<Scan>();
+        for (int i = 0; i < keys.getFirst().length; i++) {
+            byte[] regionStart = keys.getFirst()[i];
+            byte[] regionEnd = keys.getSecond()[i];
+            if (!isEmpty(stop) && Bytes.compareTo(regionStart, stop) >= 0)
+                continue;
+            if (!isEmpty(regionEnd) && Bytes.compareTo(regionEnd, start) <= 0)
+                continue;
+            Scan scan = new Scan(template);
+            scan.setStartRow(Bytes.compareTo(regionStart, start) > 0 ? regionStart : start);
+            if (isEmpty(stop) || (!isEmpty(regionEnd) && Bytes.compareTo(regionEnd, stop) < 0))
+                scan.setStopRow(regionEnd);
+            else
+                scan.setStopRow(stop);
+            scans.add(scan);
+        }
+        return scans;
+    }
+
+    //The first failure is rethrown
+    void run(final PartitionCallback<T> callback) {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            List<Scan> scans = partitions();
+            for (int i = 0; i < scans.size(); i++) {
+                final int partition = i;
+                final Scan scan = scans.get(i);
+                futures.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        long count = scanPartition(scan, new Sink<T>() {
+                            @Override
+                            public boolean accept(T element) {
+                                callback.process(partition, element);
+                                return true;
+                            }
+                        });
+                        callback.partitionDone(partition, count);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    //The element order is unspecified
+    CloseableSequence<T> sequence(int queueCapacity) {
+        return new MergedSequence(queueCapacity);
+    }
+
+    private long scanPartition(Scan scan, Sink<T> sink) throws IOException {
+        // The worker scans and decodes through its own table, released with the partition
+        ResultScanner scanner = table.get().getScanner(scan);
+        try {
+            List<T> buffer = new ArrayList<T>();
+            long count = 0;
+            for (Result result : scanner) {
+                buffer.clear();
+                decoder.decode(result, buffer);
+                for (T element : buffer) {
+                    if (!sink.accept(element))
+                        return count;
+                    count++;
+                }
+            }
+            return count;
+        } finally {
+            scanner.close();
+            table.release();
+        }
+    }
+
+    private static boolean isEmpty(byte[] key) {
+        return key == null || Bytes.equals(key, HConstants.EMPTY_BYTE_ARRAY);
+    }
+
+    private interface Sink<T> {
+        boolean accept(T element) throws IOException;
+    }
+
+    private static final Object partitionEnd = new Object();
+
+    private class MergedSequence implements CloseableSequence<T> {
+
+        private final BlockingQueue<Object> queue;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private ExecutorService pool;
+        private int pending;
+        private Object next;
+
+        MergedSequence(int queueCapacity) {
+            this.queue = new ArrayBlockingQueue<Object>(queueCapacity);
+        }
+
+        private void start() throws IOException {
+            List<Scan> scans = partitions();
+            pending = scans.size();
+            pool = Executors.newFixedThreadPool(threads);
+            for (final Scan scan : scans) {
+                pool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        Object end = partitionEnd;
+                        try {
+                            scanPartition(scan, new Sink<T>() {
+                                @Override
+                                public boolean accept(T element) throws IOException {
+                                    return offer(element);
+                                }
+                            });
+                        } catch (Exception e) {
+                            end = e;
+                        }
+                        try {
+                            offer(end);
+                        } catch (IOException ignored) {
+
+                        }
+                    }
+                });
+            }
+            pool.shutdown();
+        }
+
+        private boolean offer(Object element) throws IOException {
+            try {
+                while (!closed.get()) {
+                    if (queue.offer(element, 100, TimeUnit.MILLISECONDS))
+                        return true;
+                }
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                if (pool == null && !closed.get())
+                    start();
+                while (next == null && pending > 0 && !closed.get()) {
+                    Object element = queue.take();
+                    if (element == partitionEnd) {
+                        pending--;
+                    } else if (element instanceof Exception) {
+                        close();
+                        throw new RuntimeException((Exception) element);
+                    } else {
+                        next = element;
+                    }
+                }
+                if (next == null)
+                    close();
+                return next != null;
+            } catch (IOException e) {
+                close();
+                throw new RuntimeException(e);
+            } catch (InterruptedException e) {
+                close();
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            T element = (T) next;
+            next = null;
+            return element;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Iterator<T> iterator() {
+            return this;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                if (pool != null)
+                    pool.shutdownNow();
+                queue.clear();
+            }
+        }
+    }
+
+}
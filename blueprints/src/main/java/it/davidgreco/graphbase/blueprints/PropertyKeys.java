@@ -0,0 +1,150 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.davidgreco.graphbase.blueprints;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+
+//With the compact schema the keys are stored as varint ids, "label" is 0
+class PropertyKeys {
+
+    static final String family = "k";
+    private static final byte[] bfamily = Bytes.toBytes(family);
+    private static final byte keyRowPrefix = 'k';
+    private static final byte idRowPrefix = 'i';
+    private static final byte[] counterRow = new byte[]{'c'};
+    private static final String labelKey = "label";
+    //Cached in place of the id of the keys that have none
+    private static final byte[] missing = new byte[0];
+    private static final long missingTtlMillis = 1000;
+
+    private final ThreadLocalTable table;
+    private final byte[] labelId;
+    private final ConcurrentHashMap<String, byte[]> ids = new ConcurrentHashMap<String, byte[]>();
+    private final ConcurrentHashMap<Long, String> keys = new ConcurrentHashMap<Long, String>();
+    private volatile long missingSince = System.currentTimeMillis();
+
+    PropertyKeys(ThreadLocalTable table) {
+        this.table = table;
+        if (table != null) {
+            ids.put(labelKey, Util.toVarint(0));
+            keys.put(0L, labelKey);
+        }
+        this.labelId = getId(labelKey);
+    }
+
+    boolean isCompact() {
+        return table != null;
+    }
+
+    byte[] getOrCreateId(String key) {
+        byte[] id = getId(key);
+        if (id != null)
+            return id;
+        try {
+            HTable htable = table.get();
+            long next = htable.incrementColumnValue(counterRow, bfamily, HConstants.EMPTY_BYTE_ARRAY, 1);
+            id = Util.toVarint(next);
+            //The id row first, so that the keys of the ids found in the qualifiers can always be read
+            htable.put(new Put(getIdRow(id)).add(bfamily, HConstants.EMPTY_BYTE_ARRAY, Bytes.toBytes(key)));
+            byte[] keyRow = getKeyRow(key);
+            Put put = new Put(keyRow).add(bfamily, HConstants.EMPTY_BYTE_ARRAY, id);
+            if (!htable.checkAndPut(keyRow, bfamily, HConstants.EMPTY_BYTE_ARRAY, null, put)) {
+                //Another client assigned an id to the key first, the one just taken is left unused
+                id = htable.get(new Get(keyRow)).value();
+            }
+            //Replaces the cached miss
+            ids.put(key, id);
+            return id;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    //Null if the key has no id, so no cell can have it
+    byte[] getId(String key) {
+        if (table == null)
+            return Bytes.toBytes(key);
+        long now = System.currentTimeMillis();
+        if (now - missingSince > missingTtlMillis) {
+            missingSince = now;
+            ids.values().removeAll(Collections.singleton(missing));
+        }
+        byte[] id = ids.get(key);
+        if (id != null)
+            return id == missing ? null : id;
+        try {
+            id = table.get().get(new Get(getKeyRow(key))).value();
+            if (id == null)
+                ids.putIfAbsent(key, missing);
+            else
+                ids.put(key, id);
+            return id;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    String getKey(byte[] id) {
+        if (table == null)
+            return Bytes.toString(id);
+        long lid = Util.fromVarint(id);
+        String key = keys.get(lid);
+        if (key != null)
+            return key;
+        try {
+            byte[] bkey = table.get().get(new Get(getIdRow(id))).value();
+            if (bkey == null)
+                throw new RuntimeException("Unknown property key id " + lid);
+            key = Bytes.toString(bkey);
+            keys.put(lid, key);
+            return key;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    byte[] getLabelId() {
+        return labelId;
+    }
+
+    void release() {
+        if (table != null)
+            table.release();
+    }
+
+    void close() {
+        if (table != null)
+            table.close();
+    }
+
+    private static byte[] getKeyRow(String key) {
+        return Bytes.add(new byte[]{keyRowPrefix}, Bytes.toBytes(key));
+    }
+
+    private static byte[] getIdRow(byte[] id) {
+        return Bytes.add(new byte[]{idRowPrefix}, id);
+    }
+
+}
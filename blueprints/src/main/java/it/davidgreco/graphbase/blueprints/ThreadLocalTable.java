@@ -0,0 +1,109 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.davidgreco.graphbase.blueprints;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+//HTable isn't thread-safe, every thread gets its own
+class ThreadLocalTable {
+
+    private final Configuration conf;
+    private final byte[] tableName;
+    private final Map<Thread, HTable> opened = new ConcurrentHashMap<Thread, HTable>();
+    private final ThreadLocal<HTable> tables = new ThreadLocal<HTable>();
+
+    ThreadLocalTable(Configuration conf, byte[] tableName) {
+        this.conf = conf;
+        this.tableName = tableName;
+    }
+
+    ThreadLocalTable(Configuration conf, String tableName) {
+        this(conf, Bytes.toBytes(tableName));
+    }
+
+    HTable get() {
+        HTable table = tables.get();
+        if (table == null) {
+            closeDeadThreads();
+            try {
+                table = new HTable(conf, tableName);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            opened.put(Thread.currentThread(), table);
+            tables.set(table);
+        }
+        return table;
+    }
+
+    Configuration getConfiguration() {
+        return conf;
+    }
+
+    byte[] getTableName() {
+        return tableName;
+    }
+
+    int getOpenCount() {
+        return opened.size();
+    }
+
+    void release() {
+        HTable table = tables.get();
+        if (table == null)
+            return;
+        tables.remove();
+        opened.remove(Thread.currentThread());
+        close(table);
+    }
+
+    //They must not be in use
+    void close() {
+        for (Iterator<HTable> i = opened.values().iterator(); i.hasNext(); ) {
+            HTable table = i.next();
+            i.remove();
+            close(table);
+        }
+    }
+
+    //The tables of the threads that ended without release, e.g. replaced pool threads
+    private void closeDeadThreads() {
+        for (Iterator<Map.Entry<Thread, HTable>> i = opened.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry<Thread, HTable> e = i.next();
+            if (!e.getKey().isAlive()) {
+                i.remove();
+                close(e.getValue());
+            }
+        }
+    }
+
+    private static void close(HTable table) {
+        try {
+            table.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
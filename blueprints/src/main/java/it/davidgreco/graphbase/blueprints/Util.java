@@ -17,7 +17,9 @@
 package it.davidgreco.graphbase.blueprints;
 
 import com.eaio.uuid.UUID;
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.MD5Hash;
 
 class Util {
 
@@ -31,11 +33,36 @@ class Util {
     private final static byte boolean_type = 7;
     private final static byte non_supported_type = 100;
 
+    private final static int edgeIdLength = 24;
+    private final static int edgeLocalIdLength = 8;
+    private final static byte adjacencyLabelTerminator = 0;
+    private final static byte inEdgeValueVersion = 1;
+    private final static int vertexIdLength = 16;
+    private final static int vertexIdVersionByte = 6;
+
     static byte[] generateVertexId() {
         UUID rid = new UUID();
         return Bytes.add(Bytes.toBytes(rid.getTime()), Bytes.toBytes(rid.getClockSeqAndNode()));
     }
 
+    static byte[] generateSaltedVertexId(int buckets) {
+        byte[] tid = generateVertexId();
+        byte[] id = new byte[vertexIdLength];
+        System.arraycopy(tid, 0, id, 1, vertexIdVersionByte);
+        System.arraycopy(tid, vertexIdVersionByte + 1, id, vertexIdVersionByte + 1, vertexIdLength - vertexIdVersionByte - 1);
+        int bucket = (Bytes.hashCode(id) & Integer.MAX_VALUE) % buckets;
+        id[0] = getRegionStartByte(bucket, buckets);
+        return id;
+    }
+
+    static byte[] generateHashedVertexId() {
+        return MD5Hash.digest(generateVertexId()).getDigest();
+    }
+
+    static byte getRegionStartByte(int region, int regions) {
+        return (byte) (region * 256 / regions);
+    }
+
     static byte[] generateEdgeLocalId() {
         UUID rid = new UUID();
         return Bytes.toBytes(rid.getTime());
@@ -46,89 +73,300 @@ class Util {
     }
 
     static byte[] generateEdgePropertyId(String pkey, byte[] localId) {
-        byte[] kid = Bytes.toBytes(pkey);
-        return Bytes.add(kid, localId);
+        return generateEdgePropertyId(Bytes.toBytes(pkey), localId);
+    }
+
+    static byte[] generateEdgePropertyId(byte[] kid, byte[] localId) {
+        return Bytes.add(localId, kid);
+    }
+
+    static byte[] generateEdgePropertyPrefixEnd(byte[] localId) {
+        return getPrefixEnd(localId);
+    }
+
+    static byte[] getPrefixEnd(byte[] prefix) {
+        byte[] end = prefix.clone();
+        for (int i = end.length - 1; i >= 0; i--) {
+            if (++end[i] != 0)
+                return Bytes.head(end, i + 1);
+        }
+        throw new RuntimeException("The prefix has no successor");
+    }
+
+    static byte[] getEdgePropertyKeyId(byte[] edgePropertyId) {
+        return Bytes.tail(edgePropertyId, edgePropertyId.length - edgeLocalIdLength);
+    }
+
+    static byte[] getEdgePropertyLocalId(byte[] edgePropertyId) {
+        return Bytes.head(edgePropertyId, edgeLocalIdLength);
+    }
+
+    //The layout before the edge local id was moved in front
+    static byte[] generateLegacyEdgePropertyId(String pkey, byte[] localId) {
+        return Bytes.add(Bytes.toBytes(pkey), localId);
     }
 
     static EdgeIdStruct getEdgeIdStruct(byte[] edgeId) {
         EdgeIdStruct struct = new EdgeIdStruct();
-        struct.vertexId = Bytes.head(edgeId, 16);
+        struct.vertexId = Bytes.head(edgeId, vertexIdLength);
         struct.edgeLocalId = Bytes.tail(edgeId, 8);
         return struct;
     }
 
+    static byte[] generateAdjacencyQualifier(String label, byte[] localId) {
+        return Bytes.add(generateAdjacencyPrefix(label), localId);
+    }
+
+    static byte[] generateAdjacencyPrefix(String label) {
+        if (label.indexOf(adjacencyLabelTerminator) >= 0)
+            throw new RuntimeException("Edge labels can not contain the NUL character");
+        return Bytes.add(Bytes.toBytes(label), new byte[]{adjacencyLabelTerminator});
+    }
+
+    static AdjacencyStruct getAdjacencyStruct(byte[] qualifier) {
+        AdjacencyStruct struct = new AdjacencyStruct();
+        if (qualifier.length == edgeLocalIdLength) {
+            //Qualifier written before labels were prefixed
+            struct.edgeLocalId = qualifier;
+            return struct;
+        }
+        struct.label = Bytes.toString(qualifier, 0, qualifier.length - edgeLocalIdLength - 1);
+        struct.edgeLocalId = Bytes.tail(qualifier, edgeLocalIdLength);
+        return struct;
+    }
+
+    static class AdjacencyStruct {
+        String label;
+        byte[] edgeLocalId;
+    }
+
+    static byte[] generateInEdgeValue(byte[] edgeId, String label) {
+        return Bytes.add(edgeId, new byte[]{inEdgeValueVersion}, Bytes.toBytes(label));
+    }
+
+    static byte[] getInEdgeId(byte[] inEdgeValue) {
+        if (inEdgeValue.length == edgeIdLength)
+            return inEdgeValue;
+        return Bytes.head(inEdgeValue, edgeIdLength);
+    }
+
+    //Null for the values written before the label was stored
+    static String getInEdgeLabel(byte[] inEdgeValue) {
+        if (inEdgeValue.length == edgeIdLength)
+            return null;
+        return Bytes.toString(inEdgeValue, edgeIdLength + 1, inEdgeValue.length - edgeIdLength - 1);
+    }
+
+    //Unsigned LEB128
+    static byte[] toVarint(long value) {
+        int length = 1;
+        for (long rest = value >>> 7; rest != 0; rest >>>= 7)
+            length++;
+        byte[] b = new byte[length];
+        for (int i = 0; i < length - 1; i++) {
+            b[i] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        b[length - 1] = (byte) value;
+        return b;
+    }
+
+    static long fromVarint(byte[] b) {
+        long value = 0;
+        for (int i = 0; i < b.length; i++) {
+            value |= (long) (b[i] & 0x7F) << (7 * i);
+        }
+        return value;
+    }
+
     static class EdgeIdStruct {
         byte[] vertexId;
         byte[] edgeLocalId;
     }
 
-    static byte[] typedObjectToBytes(Object obj) {
-        byte otype = non_supported_type;
+    private static byte getType(Object obj) {
         if (obj instanceof String)
-            otype = string_type;
+            return string_type;
         else if (obj instanceof Long)
-            otype = long_type;
+            return long_type;
         else if (obj instanceof Integer)
-            otype = int_type;
+            return int_type;
         else if (obj instanceof Short)
-            otype = short_type;
+            return short_type;
         else if (obj instanceof Float)
-            otype = float_type;
+            return float_type;
         else if (obj instanceof Double)
-            otype = double_type;
+            return double_type;
         else if (obj instanceof Boolean)
-            otype = boolean_type;
+            return boolean_type;
         else if (obj instanceof byte[])
-            otype = bytearray_type;
+            return bytearray_type;
+        throw new RuntimeException("Non supported type");
+    }
 
-        byte[] otypeb = new byte[1];
-        otypeb[0] = otype;
+    static byte[] typedObjectToBytes(Object obj) {
+        if (obj instanceof String) {
+            byte[] b = Bytes.toBytes((String) obj);
+            byte[] bvalue = new byte[b.length + 1];
+            bvalue[0] = string_type;
+            System.arraycopy(b, 0, bvalue, 1, b.length);
+            return bvalue;
+        }
+        byte[] bvalue = new byte[getTypedObjectLength(obj)];
+        writeTypedObject(obj, bvalue, 0);
+        return bvalue;
+    }
+
+    static int getTypedObjectLength(Object obj) {
+        switch (getType(obj)) {
+            case bytearray_type:
+                return 1 + ((byte[]) obj).length;
+            case string_type:
+                return 1 + Bytes.toBytes((String) obj).length;
+            case long_type:
+            case double_type:
+                return 1 + Bytes.SIZEOF_LONG;
+            case int_type:
+            case float_type:
+                return 1 + Bytes.SIZEOF_INT;
+            case short_type:
+                return 1 + Bytes.SIZEOF_SHORT;
+            default:
+                return 1 + Bytes.SIZEOF_BOOLEAN;
+        }
+    }
+
+    static int writeTypedObject(Object obj, byte[] buffer, int offset) {
+        byte otype = getType(obj);
+        buffer[offset++] = otype;
         switch (otype) {
             case bytearray_type:
-                return Bytes.add(otypeb, (byte[]) obj);
+                return Bytes.putBytes(buffer, offset, (byte[]) obj, 0, ((byte[]) obj).length);
             case string_type:
-                return Bytes.add(otypeb, Bytes.toBytes((String) obj));
+                byte[] b = Bytes.toBytes((String) obj);
+                return Bytes.putBytes(buffer, offset, b, 0, b.length);
             case long_type:
-                return Bytes.add(otypeb, Bytes.toBytes((Long) obj));
+                return Bytes.putLong(buffer, offset, (Long) obj);
             case int_type:
-                return Bytes.add(otypeb, Bytes.toBytes((Integer) obj));
+                return Bytes.putInt(buffer, offset, (Integer) obj);
             case short_type:
-                return Bytes.add(otypeb, Bytes.toBytes((Short) obj));
+                return Bytes.putShort(buffer, offset, (Short) obj);
             case float_type:
-                return Bytes.add(otypeb, Bytes.toBytes((Float) obj));
+                return Bytes.putFloat(buffer, offset, (Float) obj);
             case double_type:
-                return Bytes.add(otypeb, Bytes.toBytes((Double) obj));
-            case boolean_type:
-                return Bytes.add(otypeb, Bytes.toBytes((Boolean) obj));
-            case non_supported_type:
-                throw new RuntimeException("Non supported type");
+                return Bytes.putDouble(buffer, offset, (Double) obj);
+            default:
+                buffer[offset] = (Boolean) obj ? (byte) -1 : (byte) 0;
+                return offset + 1;
         }
-        return null;
     }
 
     static Object bytesToTypedObject(byte[] bvalue) {
-        byte[] vbuffer = Bytes.tail(bvalue, bvalue.length - 1);
-        switch (bvalue[0]) {
+        return bytesToTypedObject(bvalue, 0, bvalue.length);
+    }
+
+    //In place, without copying the value
+    static Object bytesToTypedObject(KeyValue kv) {
+        return bytesToTypedObject(kv.getBuffer(), kv.getValueOffset(), kv.getValueLength());
+    }
+
+    static Object bytesToTypedObject(byte[] buffer, int offset, int length) {
+        int voffset = offset + 1;
+        int vlength = length - 1;
+        switch (buffer[offset]) {
             case bytearray_type:
-                return vbuffer;
+                byte[] b = new byte[vlength];
+                System.arraycopy(buffer, voffset, b, 0, vlength);
+                return b;
             case string_type:
-                return Bytes.toString(vbuffer);
+                return Bytes.toString(buffer, voffset, vlength);
             case long_type:
-                return Bytes.toLong(vbuffer);
+                return Bytes.toLong(buffer, voffset, vlength);
             case int_type:
-                return Bytes.toInt(vbuffer);
+                return Bytes.toInt(buffer, voffset, vlength);
             case short_type:
-                return Bytes.toShort(vbuffer);
+                return Bytes.toShort(buffer, voffset, vlength);
             case float_type:
-                return Bytes.toFloat(vbuffer);
+                return Bytes.toFloat(buffer, voffset);
             case double_type:
-                return Bytes.toDouble(vbuffer);
+                return Bytes.toDouble(buffer, voffset);
             case boolean_type:
-                return Bytes.toBoolean(vbuffer);
+                return buffer[voffset] != (byte) 0;
             case non_supported_type:
                 throw new RuntimeException("Non supported type");
         }
         return null;
     }
 
+    //Decode without boxing
+    static long getTypedLong(byte[] buffer, int offset, int length) {
+        switch (buffer[offset]) {
+            case long_type:
+                return Bytes.toLong(buffer, offset + 1, length - 1);
+            case int_type:
+                return Bytes.toInt(buffer, offset + 1, length - 1);
+            case short_type:
+                return Bytes.toShort(buffer, offset + 1, length - 1);
+        }
+        throw new RuntimeException("Not an integral value");
+    }
+
+    static double getTypedDouble(byte[] buffer, int offset, int length) {
+        switch (buffer[offset]) {
+            case double_type:
+                return Bytes.toDouble(buffer, offset + 1);
+            case float_type:
+                return Bytes.toFloat(buffer, offset + 1);
+        }
+        throw new RuntimeException("Not a floating point value");
+    }
+
+    static boolean getTypedBoolean(byte[] buffer, int offset, int length) {
+        if (buffer[offset] != boolean_type)
+            throw new RuntimeException("Not a boolean value");
+        return buffer[offset + 1] != (byte) 0;
+    }
+
+    static byte[] typedObjectToSortableBytes(Object obj) {
+        if (obj instanceof String)
+            return Bytes.add(new byte[]{string_type}, toSortableBytes((String) obj), new byte[]{0, 0});
+        else if (obj instanceof Long)
+            return Bytes.add(new byte[]{long_type}, Bytes.toBytes((Long) obj ^ Long.MIN_VALUE));
+        else if (obj instanceof Integer)
+            return Bytes.add(new byte[]{int_type}, Bytes.toBytes((Integer) obj ^ Integer.MIN_VALUE));
+        else if (obj instanceof Short)
+            return Bytes.add(new byte[]{short_type}, Bytes.toBytes((short) ((Short) obj ^ Short.MIN_VALUE)));
+        else if (obj instanceof Float) {
+            int bits = Float.floatToIntBits((Float) obj);
+            return Bytes.add(new byte[]{float_type}, Bytes.toBytes(bits < 0 ? ~bits : bits ^ Integer.MIN_VALUE));
+        } else if (obj instanceof Double) {
+            long bits = Double.doubleToLongBits((Double) obj);
+            return Bytes.add(new byte[]{double_type}, Bytes.toBytes(bits < 0 ? ~bits : bits ^ Long.MIN_VALUE));
+        }
+        return typedObjectToBytes(obj);
+    }
+
+    static byte[] typedStringPrefixToSortableBytes(String prefix) {
+        return Bytes.add(new byte[]{string_type}, toSortableBytes(prefix));
+    }
+
+    private static byte[] toSortableBytes(String s) {
+        byte[] b = Bytes.toBytes(s);
+        int nuls = 0;
+        for (byte c : b) {
+            if (c == 0)
+                nuls++;
+        }
+        if (nuls == 0)
+            return b;
+        byte[] escaped = new byte[b.length + nuls];
+        int i = 0;
+        for (byte c : b) {
+            escaped[i++] = c;
+            if (c == 0)
+                escaped[i++] = (byte) 0xFF;
+        }
+        return escaped;
+    }
+
 }
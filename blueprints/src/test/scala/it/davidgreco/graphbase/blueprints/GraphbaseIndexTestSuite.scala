@@ -19,8 +19,13 @@ package it.davidgreco.graphbase.blueprints
 import scala.collection.JavaConversions._
 import org.scalatest.matchers.ShouldMatchers
 import org.scalatest.{BeforeAndAfterEach, Spec}
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.hbase.client.{Delete, HTable, Scan}
 import org.apache.hadoop.hbase.util.Bytes
 import com.tinkerpop.blueprints.pgm.{Edge, Vertex, IndexableGraph}
+import collection.mutable.ListBuffer
+import scala.util.control.Breaks._
+import java.io.{DataOutputStream, File, FileOutputStream}
 
 class GraphbaseIndexTestSuite extends Spec with ShouldMatchers with BeforeAndAfterEach with EmbeddedHBase {
 
@@ -104,6 +109,453 @@ class GraphbaseIndexTestSuite extends Spec with ShouldMatchers with BeforeAndAft
       assert((for (v <- e1a.iterator()) yield v).length == 0)
     }
 
+
+    it("should bulk load vertexes and edges and their indexed properties") {
+      val graph = new HBaseGraph("localhost", port, "bulk")
+      val index = graph.createAutomaticIndex("bulkidx", classOf[Vertex], Set("name"))
+
+      val session = graph.startBulkLoad()
+      val vertexes = for (i <- 0 until 100) yield session.addVertex(Map[String, AnyRef]("name" -> ("v" + i), "age" -> Int.box(i)))
+      val edges = for (i <- 1 until 100) yield session.addEdge(vertexes(i), vertexes(i - 1), "next", Map[String, AnyRef]("weight" -> Double.box(i)))
+      session.close()
+      assert(session.getVertexCount == 100)
+      assert(session.getEdgeCount == 99)
+
+      assert(graph.getVertex(vertexes(42).getId).getProperty("name") == "v42")
+      assert(graph.getVertex(vertexes(42).getId).getProperty("age") == 42)
+      val e = graph.getEdge(edges(10).getId)
+      assert(e.getLabel == "next")
+      assert(e.getProperty("weight") == 11.0)
+      assert(toString(e.getInVertex.getId) == toString(vertexes(10).getId))
+      assert(vertexes(10).getInEdges("next").size == 1)
+      assert(vertexes(10).getOutEdges("next").size == 1)
+      assert(index.get("name", "v42").iterator().map(v => toString(v.getId)).toList == List(toString(vertexes(42).getId)))
+    }
+
+    it("should build index results lazily and verify them in batches") {
+      val graph = new HBaseGraph("localhost", port, "lazy")
+      val conf = new Configuration(testUtil.getConfiguration)
+      conf.setBoolean(HBaseGraph.INDEX_VERIFY, true)
+      conf.setInt(HBaseGraph.INDEX_VERIFY_BATCH, 2)
+      val verifying = new HBaseGraph(conf, "lazy")
+      graph.createAutomaticIndex("lazyvertexes", classOf[Vertex], Set("color"))
+      graph.createAutomaticIndex("lazyedges", classOf[Edge], Set("color"))
+
+      val vertexes = for (i <- 0 until 5) yield {
+        val v = graph.addVertex(null)
+        v.setProperty("color", "red")
+        v
+      }
+      val e1 = graph.addEdge(null, vertexes(0), vertexes(1), "link")
+      e1.setProperty("color", "blue")
+
+      //Remove two vertexes behind the index back
+      graph.handle.vtable.delete(new Delete(vertexes(1).getId.asInstanceOf[Array[Byte]]))
+      graph.handle.vtable.delete(new Delete(vertexes(3).getId.asInstanceOf[Array[Byte]]))
+      graph.getElementCache.invalidateAll()
+
+      val lazyIndex = graph.getIndex("lazyvertexes", classOf[Vertex])
+      assert(lazyIndex.get("color", "red").iterator.size == 5)
+      val edge = graph.getIndex("lazyedges", classOf[Edge]).get("color", "blue").iterator.toList
+      assert(edge.map(_.getLabel) == List("link"))
+      assert(toString(edge.head.getInVertex.getId) == toString(vertexes(1).getId))
+      assert(toString(edge.head.getOutVertex.getId) == toString(vertexes(0).getId))
+
+      val verified = verifying.getIndex("lazyvertexes", classOf[Vertex]).get("color", "red")
+      assert(verified.iterator.map(v => toString(v.getId)).toSet == Set(0, 2, 4).map(i => toString(vertexes(i).getId)))
+      assert(verified.next().getProperty("color") == "red")
+      verified.close()
+      assert(!verified.hasNext)
+
+      //The stale entries are removed in the background
+      var remaining = 5
+      for (i <- 0 until 50 if remaining != 3) {
+        Thread.sleep(100)
+        remaining = lazyIndex.get("color", "red").iterator.size
+      }
+      assert(remaining == 3)
+      verifying.shutdown()
+    }
+
+    it("should skip the index entries whose element doesn't hold the value anymore") {
+      val conf = new Configuration(testUtil.getConfiguration)
+      conf.setBoolean(HBaseGraph.INDEX_VERIFY, true)
+      val graph = new HBaseGraph(conf, "verifyvalue")
+      val index = graph.createAutomaticIndex("verifyvalue", classOf[Vertex], Set("color"))
+      val v = graph.addVertex(null)
+      v.setProperty("color", "red")
+      v.setProperty("color", "green")
+      //An entry left by a writer racing the update, as the backfill can
+      index.put("color", "red", v)
+
+      assert(index.get("color", "red").iterator.isEmpty)
+      assert(index.get("color", "green").iterator.map(v => toString(v.getId)).toList == List(toString(v.getId)))
+      var remaining = 1L
+      for (i <- 0 until 50 if remaining != 0) {
+        Thread.sleep(100)
+        remaining = index.count("color", "red")
+      }
+      assert(remaining == 0)
+      graph.shutdown()
+    }
+
+    it("should stream index results in pages") {
+      val conf = new Configuration(testUtil.getConfiguration)
+      conf.setInt(HBaseGraph.INDEX_PAGE_SIZE, 3)
+      val graph = new HBaseGraph(conf, "paged")
+      val index = graph.createAutomaticIndex("pagedvertexes", classOf[Vertex], Set("color"))
+      val ids = (for (i <- 0 until 10) yield {
+        val v = graph.addVertex(null)
+        v.setProperty("color", "green")
+        toString(v.getId)
+      }).toSet
+
+      val result = index.get("color", "green")
+      assert(result.iterator.map(v => toString(v.getId)).toSet == ids)
+      //Every pass reads the entry again
+      assert(result.iterator.size == 10)
+
+      //Stop after the first page
+      val partial = index.get("color", "green")
+      for (i <- 0 until 2) partial.next()
+      partial.close()
+      assert(!partial.hasNext)
+
+      //Stop a for loop after the first page, closing the sequence closes the scanner of the loop
+      val looped = index.get("color", "green")
+      var seen = 0
+      breakable {
+        for (v <- looped) {
+          seen += 1
+          if (seen == 2) break
+        }
+      }
+      assert(looped.asInstanceOf[HBaseIndexSequence[Vertex]].isOpen)
+      looped.close()
+      assert(!looped.asInstanceOf[HBaseIndexSequence[Vertex]].isOpen)
+      assert(index.get("color", "yellow").iterator.isEmpty)
+    }
+
+    it("should count the index entries") {
+      val graph = new HBaseGraph("localhost", port, "counts")
+      val index = graph.createAutomaticIndex("countvertexes", classOf[Vertex], Set("color"))
+      val vertexes = for (i <- 0 until 4) yield graph.addVertex(null)
+      vertexes.foreach(_.setProperty("color", "red"))
+      vertexes(0).setProperty("color", "red")
+      assert(index.count("color", "red") == 4)
+
+      vertexes(1).setProperty("color", "blue")
+      vertexes(2).removeProperty("color")
+      vertexes(2).removeProperty("color")
+      graph.removeVertex(vertexes(3))
+      assert(index.count("color", "red") == 1)
+      assert(index.count("color", "blue") == 1)
+      assert(index.count("color", "green") == 0)
+      assert(index.count("shape", "round") == 0)
+
+      val session = graph.startBulkLoad()
+      for (i <- 0 until 5) session.addVertex(Map[String, AnyRef]("color" -> "blue"))
+      session.close()
+      assert(index.count("color", "blue") == 6)
+
+      //Tables created before the counters are counted by reading the entries until migrated
+      val admin = testUtil.getHBaseAdmin
+      val table = "index.-.countvertexes.-.color"
+      admin.disableTable(table)
+      admin.deleteColumn(table, table + ".-.counts")
+      admin.enableTable(table)
+      val legacy = new HBaseGraph("localhost", port, "counts")
+      assert(legacy.getIndex("countvertexes", classOf[Vertex]).count("color", "blue") == 6)
+      assert(HBaseGraphMigrations.countIndexEntries(legacy) == 2)
+      val migrated = new HBaseGraph("localhost", port, "counts")
+      val migratedIndex = migrated.getIndex("countvertexes", classOf[Vertex])
+      assert(migratedIndex.count("color", "blue") == 6)
+      migrated.addVertex(null).setProperty("color", "red")
+      assert(migratedIndex.count("color", "red") == 2)
+    }
+
+    it("should count the entries written in batches once") {
+      val graph = new HBaseGraph("localhost", port, "batchcounts")
+      val index = graph.createAutomaticIndex("batchvertexes", classOf[Vertex], Set("color")).asInstanceOf[HBaseIndex[Vertex]]
+      val v1 = graph.addVertex(null)
+      val v2 = graph.addVertex(null)
+      v1.setProperty("color", "red")
+      val struct = index.getIndexTable("color")
+      val table = new HTable(testUtil.getConfiguration, "index.-.batchvertexes.-.color")
+
+      //The entry of v1 is already there, as if written by a concurrent put
+      HBaseIndex.putEntries(table, struct, List(index.createPut("color", "red", v1), index.createPut("color", "red", v2)))
+      assert(index.count("color", "red") == 2)
+      HBaseIndex.putEntries(table, struct, List(index.createPut("color", "red", v2)))
+      assert(index.count("color", "red") == 2)
+
+      val delete = index.createDelete("color", "red", v2)
+      HBaseIndex.deleteEntries(table, struct, List(delete))
+      HBaseIndex.deleteEntries(table, struct, List(delete))
+      index.remove("color", "red", v2)
+      assert(index.count("color", "red") == 1)
+      table.close()
+      graph.shutdown()
+    }
+
+    it("should look up ranges and prefixes of sortable index values") {
+      val graph = new HBaseGraph("localhost", port, "ranges")
+      val index = graph.createAutomaticIndex("rangevertexes", classOf[Vertex], Set("age", "weight", "name")).asInstanceOf[HBaseIndex[Vertex]]
+      val ages = List(-300, -2, 0, 5, 30, 31, 70000)
+      val weights = List(-1.5, -0.25, 0.0, 0.5, 80.0)
+      val names = List("al", "alan", "alice", "bob", "a\u0000b")
+      for (age <- ages) graph.addVertex(null).setProperty("age", Int.box(age))
+      for (weight <- weights) graph.addVertex(null).setProperty("weight", Double.box(weight))
+      for (name <- names) graph.addVertex(null).setProperty("name", name)
+
+      def values(result: com.tinkerpop.blueprints.pgm.CloseableSequence[Vertex], key: String) = result.iterator.map(_.getProperty(key)).toList
+      assert(values(index.getRange("age", Int.box(30), false, null, false), "age") == List(31, 70000))
+      assert(values(index.getRange("age", Int.box(-300), true, Int.box(5), true), "age") == List(-300, -2, 0, 5))
+      assert(values(index.getRange("age", null, false, Int.box(0), false), "age") == List(-300, -2))
+      assert(values(index.getRange("age", Int.box(5), false, Int.box(5), true), "age") == Nil)
+      assert(values(index.getRange("weight", Double.box(-1.0), true, Double.box(1.0), true), "weight") == List(-0.25, 0.0, 0.5))
+      assert(values(index.getPrefix("name", "al"), "name") == List("al", "alan", "alice"))
+      assert(values(index.getPrefix("name", "a"), "name") == List("a\u0000b", "al", "alan", "alice"))
+      assert(values(index.getRange("name", "alan", true, "bob", false), "name") == List("alan", "alice"))
+      assert(index.count("age", Int.box(-2)) == 1)
+      evaluating { index.getRange("age", Int.box(1), true, Long.box(2), true) } should produce[IllegalArgumentException]
+    }
+
+    it("should migrate indices to the sortable encoding") {
+      val graph = new HBaseGraph("localhost", port, "sortable")
+      graph.createAutomaticIndex("legacyvertexes", classOf[Vertex], Set("age"))
+      //Removing the encoding marker turns the index into one created before the sortable encoding
+      val marker = new Delete(Bytes.toBytes("legacyvertexes"))
+      marker.deleteColumns(Bytes.toBytes("sortable_indexes_class"), Bytes.toBytes("encoding"))
+      graph.handle.ivtable.delete(marker)
+      val legacy = new HBaseGraph("localhost", port, "sortable")
+      for (age <- List(-5, 3, 10)) legacy.addVertex(null).setProperty("age", Int.box(age))
+      val legacyIndex = legacy.getIndex("legacyvertexes", classOf[Vertex]).asInstanceOf[HBaseIndex[Vertex]]
+      assert(legacyIndex.get("age", Int.box(-5)).iterator.size == 1)
+      evaluating { legacyIndex.getRange("age", Int.box(0), true, null, false) } should produce[RuntimeException]
+
+      assert(HBaseGraphMigrations.sortIndexKeys(legacy) == 3)
+      val index = legacy.getIndex("legacyvertexes", classOf[Vertex]).asInstanceOf[HBaseIndex[Vertex]]
+      assert(index.getRange("age", Int.box(-10), true, Int.box(5), true).iterator.map(_.getProperty("age")).toList == List(-5, 3))
+      assert(index.count("age", Int.box(10)) == 1)
+      legacy.addVertex(null).setProperty("age", Int.box(4))
+      assert(new HBaseGraph("localhost", port, "sortable").getIndex("legacyvertexes", classOf[Vertex]).count("age", Int.box(4)) == 1)
+    }
+
+    it("should write the index updates in the background and replay the logs of crashed clients") {
+      val logDir = new File(System.getProperty("java.io.tmpdir"), "graphbase-index-logs-" + System.nanoTime)
+      val conf = new Configuration(testUtil.getConfiguration)
+      conf.setBoolean(HBaseGraph.INDEX_ASYNC, true)
+      conf.setInt(HBaseGraph.INDEX_QUEUE_SIZE, 4)
+      conf.set(HBaseGraph.INDEX_LOG_DIR, logDir.getPath)
+      new HBaseGraph("localhost", port, "async").createAutomaticIndex("asyncvertexes", classOf[Vertex], Set("color"))
+
+      val graph = new HBaseGraph(conf, "async")
+      val index = graph.getIndex("asyncvertexes", classOf[Vertex])
+      val vertexes = for (i <- 0 until 20) yield {
+        val v = graph.addVertex(null)
+        v.setProperty("color", "red")
+        v
+      }
+      vertexes(0).setProperty("color", "blue")
+      vertexes(1).removeProperty("color")
+      graph.flushIndices()
+      assert(index.get("color", "red").iterator.size == 18)
+      assert(index.count("color", "red") == 18)
+      assert(index.get("color", "blue").iterator.map(v => toString(v.getId)).toList == List(toString(vertexes(0).getId)))
+      //The removal is queued behind the update still waiting in the pipeline
+      vertexes(3).setProperty("color", "yellow")
+      graph.removeVertex(vertexes(3))
+      graph.flushIndices()
+      assert(index.get("color", "yellow").iterator.isEmpty)
+      assert(index.count("color", "yellow") == 0)
+      assert(logDir.listFiles.map(_.length).toList == List(0L))
+      graph.shutdown()
+      assert(logDir.listFiles.isEmpty)
+
+      //The log of a client that died before its updates were written
+      val orphan = new DataOutputStream(new FileOutputStream(new File(logDir, "async.orphan")))
+      for (v <- List(vertexes(1), vertexes(2))) {
+        orphan.writeByte(1)
+        orphan.writeUTF("color")
+        val value = Util.typedObjectToBytes("green")
+        orphan.writeInt(value.length)
+        orphan.write(value)
+        orphan.writeByte(1)
+        val id = v.getId.asInstanceOf[Array[Byte]]
+        orphan.writeInt(id.length)
+        orphan.write(id)
+      }
+      orphan.writeByte(1)
+      orphan.close()
+      //The log of another graph whose name starts with this one
+      val other = new File(logDir, "async.other.orphan")
+      other.createNewFile()
+      val replaying = new HBaseGraph(conf, "async")
+      assert(replaying.getIndex("asyncvertexes", classOf[Vertex]).count("color", "green") == 2)
+      replaying.shutdown()
+      assert(logDir.listFiles.toList == List(other))
+      other.delete()
+      logDir.delete()
+    }
+
+    it("should report the background index updates it fails to write and keep them for the replay") {
+      val logDir = new File(System.getProperty("java.io.tmpdir"), "graphbase-index-logs-" + System.nanoTime)
+      val conf = new Configuration(testUtil.getConfiguration)
+      conf.setBoolean(HBaseGraph.INDEX_ASYNC, true)
+      conf.set(HBaseGraph.INDEX_LOG_DIR, logDir.getPath)
+      conf.setInt(HBaseGraph.INDEX_RETRIES, 1)
+      conf.setInt("hbase.client.retries.number", 1)
+      val graph = new HBaseGraph(conf, "asyncfail")
+      val index = graph.createAutomaticIndex("asyncfailvertexes", classOf[Vertex], Set("color")).asInstanceOf[HBaseIndex[Vertex]]
+      val v1 = graph.addVertex(null)
+      val tableName = index.getIndexTable("color").indexTable.getTableName
+      testUtil.getHBaseAdmin.disableTable(tableName)
+      v1.setProperty("color", "red")
+      intercept[RuntimeException] {
+        graph.flushIndices()
+      }
+      graph.shutdown()
+      assert(logDir.listFiles.length == 1)
+
+      testUtil.getHBaseAdmin.enableTable(tableName)
+      val replaying = new HBaseGraph(conf, "asyncfail")
+      assert(replaying.getIndex("asyncfailvertexes", classOf[Vertex]).count("color", "red") == 1)
+      replaying.shutdown()
+      assert(logDir.listFiles.isEmpty)
+      logDir.delete()
+    }
+
+    it("should store the indices in a shared table") {
+      val conf = new Configuration(testUtil.getConfiguration)
+      conf.set(HBaseGraph.INDEX_STORAGE, "shared")
+      conf.setInt(HBaseGraph.INDEX_SHARED_REGIONS, 4)
+      val graph = new HBaseGraph(conf, "shared")
+      val people = graph.createAutomaticIndex("people", classOf[Vertex], Set("name", "age")).asInstanceOf[HBaseIndex[Vertex]]
+      val things = graph.createAutomaticIndex("things", classOf[Vertex], Set("name"))
+      val table = new HTable(conf, "shared_index_entries")
+      assert(table.getStartKeys.length == 4)
+      for (i <- 0 until 10) {
+        val v = graph.addVertex(null)
+        v.setProperty("name", "n" + i)
+        v.setProperty("age", Int.box(i))
+      }
+      assert(people.get("name", "n3").iterator.size == 1)
+      assert(people.count("name", "n3") == 1)
+      assert(things.count("name", "n3") == 1)
+      assert(people.getRange("age", Int.box(7), true, null, false).iterator.map(_.getProperty("age")).toList == List(7, 8, 9))
+      assert(people.getPrefix("name", "n").iterator.size == 10)
+      def rows = table.getScanner(new Scan).iterator.size
+      assert(rows == 30)
+
+      graph.dropIndex("things")
+      assert(rows == 20)
+      assert(new HBaseGraph(conf, "shared").getIndex("people", classOf[Vertex]).get("name", "n3").iterator.size == 1)
+    }
+
+    it("should migrate the indices to the shared table") {
+      val graph = new HBaseGraph("localhost", port, "toshare")
+      graph.createAutomaticIndex("toshareidx", classOf[Vertex], Set("age"))
+      for (age <- List(-1, 2, 2, 40)) graph.addVertex(null).setProperty("age", Int.box(age))
+      assert(testUtil.getHBaseAdmin.tableExists("index.-.toshareidx.-.age"))
+
+      assert(HBaseGraphMigrations.shareIndexTable(graph, 2) == 3)
+      assert(!testUtil.getHBaseAdmin.tableExists("index.-.toshareidx.-.age"))
+      val index = new HBaseGraph("localhost", port, "toshare").getIndex("toshareidx", classOf[Vertex]).asInstanceOf[HBaseIndex[Vertex]]
+      assert(index.count("age", Int.box(2)) == 2)
+      assert(index.getRange("age", Int.box(-5), true, Int.box(5), true).iterator.map(_.getProperty("age")).toList == List(-1, 2, 2))
+      graph.getIndex("toshareidx", classOf[Vertex])
+      graph.addVertex(null).setProperty("age", Int.box(40))
+      assert(index.count("age", Int.box(40)) == 2)
+    }
+
+    it("should backfill an index created on existing elements") {
+      val graph = new HBaseGraph("localhost", port, "backfill")
+      val vertexes = for (i <- 0 until 50) yield {
+        val v = graph.addVertex(null)
+        v.setProperty("age", Int.box(i))
+        v
+      }
+      for (i <- 0 until 10) graph.addEdge(null, vertexes(i), vertexes(i + 1), "next").setProperty("weight", Int.box(i))
+
+      val conf = new Configuration(testUtil.getConfiguration)
+      conf.setBoolean(HBaseGraph.INDEX_BACKFILL, true)
+      conf.setInt(HBaseGraph.INDEX_BACKFILL_THREADS, 2)
+      conf.setInt(HBaseGraph.INDEX_BACKFILL_BATCH, 7)
+      val backfilling = new HBaseGraph(conf, "backfill")
+      val index = backfilling.createAutomaticIndex("backfillvertexes", classOf[Vertex], Set("age")).asInstanceOf[HBaseIndex[Vertex]]
+      val deadline = System.currentTimeMillis + 60000
+      while (index.isBuilding && System.currentTimeMillis < deadline) Thread.sleep(100)
+      assert(!index.isBuilding)
+      assert(!new HBaseGraph(conf, "backfill").getIndex("backfillvertexes", classOf[Vertex]).asInstanceOf[HBaseIndex[Vertex]].isBuilding)
+      assert(index.count("age", Int.box(3)) == 1)
+      assert(index.get("age", Int.box(49)).iterator.next.getId.asInstanceOf[Array[Byte]].toList == vertexes(49).getId.asInstanceOf[Array[Byte]].toList)
+
+      val edgeIndex = graph.createAutomaticIndex("backfilledges", classOf[Edge], Set("weight")).asInstanceOf[HBaseIndex[Edge]]
+      assert(!edgeIndex.isBuilding)
+      assert(edgeIndex.count("weight", Int.box(4)) == 0)
+      assert(graph.buildIndex("backfilledges") == 10)
+      assert(edgeIndex.get("weight", Int.box(4)).iterator.map(_.getLabel).toList == List("next"))
+      assert(graph.handle.getIndexCheckpoints("backfilledges").isEmpty)
+
+      //A backfill interrupted after the last row resumes from there
+      graph.handle.putIndexCheckpoint("backfilledges", Array[Byte](), Array.fill(32)(0xff.toByte))
+      assert(graph.buildIndex("backfilledges") == 0)
+      assert(graph.handle.getIndexCheckpoints("backfilledges").isEmpty)
+
+      //shutdown stops a running backfill at the end of its batch
+      conf.setInt(HBaseGraph.INDEX_BACKFILL_BATCH, 1)
+      conf.setInt(HBaseGraph.INDEX_BACKFILL_RATE, 2)
+      val stopped = new HBaseGraph(conf, "backfill")
+      stopped.createAutomaticIndex("stoppedvertexes", classOf[Vertex], Set("age"))
+      Thread.sleep(1000)
+      stopped.shutdown()
+      assert(!Thread.getAllStackTraces.keySet.exists(_.getName == "graphbase-index-backfill-stoppedvertexes"))
+      val resumed = new HBaseGraph("localhost", port, "backfill")
+      assert(resumed.getIndex("stoppedvertexes", classOf[Vertex]).asInstanceOf[HBaseIndex[Vertex]].isBuilding)
+      resumed.buildIndex("stoppedvertexes")
+      assert(resumed.getIndex("stoppedvertexes", classOf[Vertex]).count("age", Int.box(49)) == 1)
+    }
+
+    it("should remove a vertex with its edges and index entries in batches") {
+      val graph = new HBaseGraph("localhost", port, "cascade")
+      val vertexIndex = graph.createAutomaticIndex("cascadevertexes", classOf[Vertex], Set("name"))
+      val edgeIndex = graph.createAutomaticIndex("cascadeedges", classOf[Edge], Set("weight"))
+
+      val session = graph.startBulkLoad()
+      val hub = session.addVertex(Map[String, AnyRef]("name" -> "hub"))
+      val neighbors = for (i <- 0 until 1500) yield session.addVertex(Map[String, AnyRef]("name" -> ("n" + i)))
+      for (i <- 0 until 1500) {
+        if (i % 2 == 0)
+          session.addEdge(hub, neighbors(i), "out", Map[String, AnyRef]("weight" -> Int.box(i)))
+        else
+          session.addEdge(neighbors(i), hub, "in", Map[String, AnyRef]("weight" -> Int.box(i)))
+      }
+      session.close()
+      val kept = graph.addEdge(null, neighbors(0), neighbors(1), "kept")
+      kept.setProperty("weight", Int.box(-1))
+
+      val calls = new ListBuffer[(Long, Long)]
+      graph.removeVertex(hub, new CascadeListener {
+        def progress(removedEdges: Long, totalEdges: Long) {
+          calls += ((removedEdges, totalEdges))
+        }
+      })
+
+      assert(calls.toList == List((750L, 1500L), (1500L, 1500L)))
+      assert(graph.getVertex(hub.getId) == null)
+      assert(neighbors(0).getInEdges().isEmpty)
+      assert(neighbors(0).getOutEdges().map(_.getLabel).toList == List("kept"))
+      assert(neighbors(1).getOutEdges().isEmpty)
+      assert(neighbors(1).getInEdges().map(_.getLabel).toList == List("kept"))
+      assert(neighbors(1).getPropertyKeys.toSet == Set("name"))
+      assert(vertexIndex.get("name", "hub").iterator.isEmpty)
+      assert(vertexIndex.get("name", "n7").iterator.size == 1)
+      assert(edgeIndex.get("weight", Int.box(0)).iterator.isEmpty)
+      assert(edgeIndex.get("weight", Int.box(1)).iterator.isEmpty)
+      assert(edgeIndex.get("weight", Int.box(-1)).iterator.map(_.getLabel).toList == List("kept"))
+    }
+
   }
 
   def toString(id: AnyRef): String = Bytes.toString(id.asInstanceOf[Array[Byte]]);
@@ -20,13 +20,16 @@ import org.scalatest.junit.JUnitRunner
 import org.scalatest.matchers.ShouldMatchers
 import org.scalatest.{BeforeAndAfterEach, Spec}
 import org.junit.runner.RunWith
-import org.apache.hadoop.hbase.HBaseConfiguration
-import org.apache.hadoop.hbase.client.HBaseAdmin
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.fs.Path
+import org.apache.hadoop.hbase.{HBaseConfiguration, KeyValue}
+import org.apache.hadoop.hbase.client.{Delete, Get, Put, HBaseAdmin, Result}
 import org.apache.hadoop.hbase.util.Bytes
 import scala.collection.JavaConversions._
 import com.tinkerpop.gremlin.Gremlin
 import com.tinkerpop.pipes.Pipe
-import com.tinkerpop.blueprints.pgm.{Vertex, Graph}
+import com.tinkerpop.blueprints.pgm.{Edge, Vertex, Graph}
+import java.io.{File, PrintWriter}
 import java.util.ArrayList
 import collection.mutable.ListBuffer
 
@@ -97,6 +100,32 @@ class GraphbaseTestSuite extends Spec with ShouldMatchers with BeforeAndAfterEac
       }
     }
 
+    it("should decode the typed values in place") {
+      val values = List[AnyRef]("v", "", java.lang.Long.valueOf(-5L), Integer.valueOf(7), java.lang.Short.valueOf(3.toShort),
+        java.lang.Float.valueOf(1.5f), java.lang.Double.valueOf(-2.5), java.lang.Boolean.TRUE, java.lang.Boolean.FALSE)
+      for (value <- values) {
+        val bvalue = Util.typedObjectToBytes(value)
+        assert(bvalue.length == Util.getTypedObjectLength(value))
+        val buffer = new Array[Byte](bvalue.length + 4)
+        assert(Util.writeTypedObject(value, buffer, 2) == bvalue.length + 2)
+        assert(Util.bytesToTypedObject(buffer, 2, bvalue.length) == value)
+        assert(Util.bytesToTypedObject(bvalue) == value)
+      }
+      assert(Util.bytesToTypedObject(Util.typedObjectToBytes(Bytes.toBytes("raw"))).asInstanceOf[Array[Byte]].sameElements(Bytes.toBytes("raw")))
+      val kv = new KeyValue(Bytes.toBytes("row"), Bytes.toBytes("f"), Bytes.toBytes("q"), Util.typedObjectToBytes(java.lang.Long.valueOf(42L)))
+      assert(Util.bytesToTypedObject(kv) == 42L)
+      assert(Util.getTypedLong(kv.getBuffer, kv.getValueOffset, kv.getValueLength) == 42L)
+      val i = Util.typedObjectToBytes(Integer.valueOf(9))
+      assert(Util.getTypedLong(i, 0, i.length) == 9L)
+      val d = Util.typedObjectToBytes(java.lang.Float.valueOf(0.25f))
+      assert(Util.getTypedDouble(d, 0, d.length) == 0.25)
+      val b = Util.typedObjectToBytes(java.lang.Boolean.TRUE)
+      assert(Util.getTypedBoolean(b, 0, b.length))
+      intercept[RuntimeException] {
+        Util.getTypedLong(d, 0, d.length)
+      }
+    }
+
     it("should create and retrieve edges") {
       val graph: Graph = new HBaseGraph("localhost", port, "simple")
 
@@ -285,6 +314,500 @@ class GraphbaseTestSuite extends Spec with ShouldMatchers with BeforeAndAfterEac
       assert(e2.getProperty("A_BOOLEAN") == null)
     }
 
+    it("should serve repeated reads from the element cache") {
+      val conf = HBaseConfiguration.create
+      conf.set("hbase.zookeeper.quorum", "localhost")
+      conf.set("hbase.zookeeper.property.clientPort", port)
+      conf.setInt(HBaseGraph.CACHE_MAX_ROWS, 10000)
+      val graph = new HBaseGraph(conf, "simple")
+      val cache = graph.getElementCache
+
+      val v1 = graph.addVertex(null)
+      v1.setProperty("A_STRING", "DAVID")
+
+      val misses = cache.getMissCount
+      assert(v1.getProperty("A_STRING") == "DAVID")
+      assert(cache.getMissCount == misses + 1)
+      val hits = cache.getHitCount
+      assert(v1.getProperty("A_STRING") == "DAVID")
+      assert(v1.getPropertyKeys.toSet == Set("A_STRING"))
+      assert(cache.getHitCount == hits + 2)
+
+      v1.setProperty("A_STRING", "GRECO")
+      assert(v1.getProperty("A_STRING") == "GRECO")
+      v1.removeProperty("A_STRING")
+      assert(v1.getProperty("A_STRING") == null)
+
+      val v2 = graph.addVertex(null)
+      val e1 = graph.addEdge(null, v1, v2, "e1")
+      assert(v1.getOutEdges.size == 1)
+      e1.setProperty("A_LONG", 1234567L)
+      assert(e1.getProperty("A_LONG") == 1234567L)
+      graph.removeEdge(e1)
+      assert(v1.getOutEdges.size == 0)
+      assert(v2.getInEdges.size == 0)
+    }
+
+    it("shouldn't cache rows by default") {
+      val graph = new HBaseGraph("localhost", port, "simple")
+      val v1 = graph.addVertex(null)
+      v1.setProperty("A_STRING", "DAVID")
+      assert(v1.getProperty("A_STRING") == "DAVID")
+      assert(graph.getElementCache.size == 0)
+    }
+
+    it("should expire the element cache rows after the staleness window") {
+      val cache = new ElementCache(10, 1024 * 1024, 50, 1)
+      val row = Bytes.toBytes("row")
+      cache.put(row, cachedRow(row, 10), cache.getVersion(row))
+      assert(cache.get(row) != null)
+      Thread.sleep(100)
+      assert(cache.get(row) == null)
+      assert(cache.size == 0)
+      assert(cache.getHitCount == 1)
+      assert(cache.getMissCount == 1)
+    }
+
+    it("should evict the least recently used element cache rows over the bytes bound") {
+      val rows = (0 until 3).map(i => Bytes.toBytes("row" + i))
+      val probe = new ElementCache(10, 1024 * 1024, 0, 1)
+      probe.put(rows(0), cachedRow(rows(0), 100), probe.getVersion(rows(0)))
+      val weight = probe.getWeight
+      val cache = new ElementCache(10, weight * 2, 0, 1)
+      cache.put(rows(0), cachedRow(rows(0), 100), cache.getVersion(rows(0)))
+      cache.put(rows(1), cachedRow(rows(1), 100), cache.getVersion(rows(1)))
+      assert(cache.get(rows(0)) != null)
+      cache.put(rows(2), cachedRow(rows(2), 100), cache.getVersion(rows(2)))
+      assert(cache.size == 2)
+      assert(cache.getWeight == weight * 2)
+      assert(cache.getEvictionCount == 1)
+      assert(cache.get(rows(1)) == null)
+      assert(cache.get(rows(0)) != null)
+      assert(cache.get(rows(2)) != null)
+      assert(cache.getHitCount == 3)
+      assert(cache.getMissCount == 1)
+    }
+
+    it("shouldn't cache an element cache row read before its invalidation") {
+      val cache = new ElementCache(10, 1024 * 1024, 0)
+      val row = Bytes.toBytes("row")
+      val version = cache.getVersion(row)
+      cache.invalidate(row)
+      cache.put(row, cachedRow(row, 10), version)
+      assert(cache.get(row) == null)
+      cache.put(row, cachedRow(row, 10), cache.getVersion(row))
+      assert(cache.get(row) != null)
+    }
+
+    it("should read in-edge labels from the in-vertex row") {
+      val graph = new HBaseGraph("localhost", port, "simple")
+
+      val v1 = graph.addVertex(null)
+      val v2 = graph.addVertex(null)
+      val e1 = graph.addEdge(null, v1, v2, "e1")
+      val e2 = graph.addEdge(null, v1, v2, "e2")
+      assert(v2.getInEdges.map(_.getLabel).toSet == Set("e1", "e2"))
+      assert(v2.getInEdges("e2").map(e => toString(e.getId)).toList == List(toString(e2.getId)))
+    }
+
+    it("should filter edges by label and migrate the older adjacency layout") {
+      val graph = new HBaseGraph("localhost", port, "simple")
+
+      val v1 = graph.addVertex(null)
+      val v2 = graph.addVertex(null)
+      val e1 = graph.addEdge(null, v1, v2, "knows")
+      val e2 = graph.addEdge(null, v1, v2, "know")
+      val e3 = graph.addEdge(null, v2, v1, "knows")
+      assert(v1.getOutEdges("knows").map(e => toString(e.getId)).toList == List(toString(e1.getId)))
+      assert(v1.getOutEdges("know").map(e => toString(e.getId)).toList == List(toString(e2.getId)))
+      assert(v1.getOutEdges("other").size == 0)
+      assert(v2.getInEdges("knows").map(e => toString(e.getId)).toList == List(toString(e1.getId)))
+      assert(v1.getInEdges("knows").map(e => toString(e.getId)).toList == List(toString(e3.getId)))
+
+      //Rewrite e1 in the layout written before labels were denormalized and prefixed
+      val outEdges = Bytes.toBytes(graph.handle.vnameOutEdges)
+      val inEdges = Bytes.toBytes(graph.handle.vnameInEdges)
+      val outId = v1.getId.asInstanceOf[Array[Byte]]
+      val inId = v2.getId.asInstanceOf[Array[Byte]]
+      val struct = Util.getEdgeIdStruct(e1.getId.asInstanceOf[Array[Byte]])
+      val qualifier = Util.generateAdjacencyQualifier("knows", struct.edgeLocalId)
+      graph.handle.vtable.delete(new Delete(outId).deleteColumns(outEdges, qualifier))
+      graph.handle.vtable.delete(new Delete(inId).deleteColumns(inEdges, qualifier))
+      graph.handle.vtable.put(new Put(outId).add(outEdges, struct.edgeLocalId, inId))
+      graph.handle.vtable.put(new Put(inId).add(inEdges, struct.edgeLocalId, e1.getId.asInstanceOf[Array[Byte]]))
+      graph.getElementCache.invalidateAll()
+      assert(v1.getOutEdges.map(_.getLabel).toSet == Set("knows", "know"))
+      assert(v2.getInEdges.map(_.getLabel).toSet == Set("knows", "know"))
+      assert(graph.getEdge(e1.getId).getLabel == "knows")
+      intercept[RuntimeException] {
+        HBaseGraphMigrations.copyToCompactSchema(graph, "unlabeledcompact")
+      }
+
+      assert(HBaseGraphMigrations.prefixAdjacencyWithLabels(graph) >= 2)
+      val out = graph.handle.vtable.get(new Get(outId))
+      assert(out.getValue(outEdges, struct.edgeLocalId) == null)
+      assert(toString(out.getValue(outEdges, qualifier)) == toString(inId))
+      val in = graph.handle.vtable.get(new Get(inId))
+      assert(in.getValue(inEdges, struct.edgeLocalId) == null)
+      assert(Util.getInEdgeLabel(in.getValue(inEdges, qualifier)) == "knows")
+      assert(v1.getOutEdges("knows").map(e => toString(e.getId)).toList == List(toString(e1.getId)))
+      assert(v2.getInEdges("knows").map(e => toString(e.getId)).toList == List(toString(e1.getId)))
+    }
+
+    it("should read edge properties by edge and migrate the older edge property layout") {
+      val graph = new HBaseGraph("localhost", port, "edgeprops")
+
+      val v1 = graph.addVertex(null)
+      val v2 = graph.addVertex(null)
+      val e1 = graph.addEdge(null, v1, v2, "e1")
+      val e2 = graph.addEdge(null, v1, v2, "e2")
+      e1.setProperty("weight", Int.box(1))
+      e1.setProperty("name", "first")
+      e2.setProperty("weight", Int.box(2))
+      graph.getElementCache.invalidateAll()
+      assert(e1.getPropertyKeys.toSet == Set("weight", "name"))
+      assert(e2.getPropertyKeys.toSet == Set("weight"))
+      assert(e1.getProperty("weight") == 1)
+      assert(e1.removeProperty("name") == "first")
+      assert(e1.getPropertyKeys.toSet == Set("weight"))
+
+      //Rewrite e1 properties with the qualifiers ending with the edge local id
+      val edgeProperties = Bytes.toBytes(graph.handle.vnameEdgeProperties)
+      val outId = v1.getId.asInstanceOf[Array[Byte]]
+      val localId = Util.getEdgeIdStruct(e1.getId.asInstanceOf[Array[Byte]]).edgeLocalId
+      for (key <- List("label", "weight")) {
+        val qualifier = Util.generateEdgePropertyId(key, localId)
+        val value = graph.handle.vtable.get(new Get(outId)).getValue(edgeProperties, qualifier)
+        graph.handle.vtable.delete(new Delete(outId).deleteColumns(edgeProperties, qualifier))
+        graph.handle.vtable.put(new Put(outId).add(edgeProperties, Util.generateLegacyEdgePropertyId(key, localId), value))
+      }
+      graph.getElementCache.invalidateAll()
+      assert(graph.getEdge(e1.getId) == null)
+
+      assert(HBaseGraphMigrations.prefixEdgePropertiesWithLocalIds(graph) == 2)
+      assert(HBaseGraphMigrations.prefixEdgePropertiesWithLocalIds(graph) == 0)
+      val e1n = graph.getEdge(e1.getId)
+      assert(e1n.getLabel == "e1")
+      assert(e1n.getProperty("weight") == 1)
+      assert(e1n.getPropertyKeys.toSet == Set("weight"))
+      assert(graph.getEdge(e2.getId).getProperty("weight") == 2)
+
+      graph.removeEdge(e1n)
+      assert(graph.getEdge(e1.getId) == null)
+      assert(graph.handle.vtable.get(new Get(outId)).getFamilyMap(edgeProperties).keySet.forall(q => !Bytes.startsWith(q, localId)))
+    }
+
+    it("should iterate over all the vertexes and edges") {
+      val conf = HBaseConfiguration.create
+      conf.set("hbase.zookeeper.quorum", "localhost")
+      conf.set("hbase.zookeeper.property.clientPort", port)
+      conf.setInt(HBaseGraph.SCAN_CACHING, 2)
+      conf.setInt(HBaseGraph.SCAN_BATCH, 2)
+      val graph = new HBaseGraph(conf, "scan")
+
+      val vertexes = for (i <- 1 to 5) yield graph.addVertex(null)
+      vertexes(0).setProperty("A_STRING", "DAVID")
+      val edges = for (i <- 1 to 4; j <- 0 to 4 if i != j) yield graph.addEdge(null, vertexes(i), vertexes(j), "e" + i)
+
+      assert(graph.getVertices.iterator.map(v => toString(v.getId)).toSet == vertexes.map(v => toString(v.getId)).toSet)
+      val scanned = graph.getEdges.iterator.toList
+      assert(scanned.size == edges.size)
+      assert(scanned.map(e => (toString(e.getId), e.getLabel, toString(e.getOutVertex.getId), toString(e.getInVertex.getId))).toSet ==
+        edges.map(e => (toString(e.getId), e.getLabel, toString(e.getOutVertex.getId), toString(e.getInVertex.getId))).toSet)
+
+      val partial = graph.getEdges
+      assert(partial.hasNext)
+      partial.next()
+      partial.close()
+      assert(!partial.hasNext)
+    }
+
+    it("should close the tables of the threads that ended") {
+      val graph = new HBaseGraph("localhost", port, "threadtables")
+      val v = graph.addVertex(null)
+      for (round <- 0 until 3) {
+        val threads = for (i <- 0 until 4) yield new Thread(new Runnable {
+          def run() {
+            graph.getVertex(v.getId)
+          }
+        })
+        threads.foreach(_.start())
+        threads.foreach(_.join())
+      }
+      graph.getVertex(v.getId)
+      //The first call of a new thread closes the tables of the ended ones
+      val last = new Thread(new Runnable {
+        def run() {
+          graph.getVertex(v.getId)
+        }
+      })
+      last.start()
+      last.join()
+      assert(graph.handle.vtables.getOpenCount == 2)
+      graph.shutdown()
+      assert(graph.handle.vtables.getOpenCount == 0)
+    }
+
+    it("should scan the regions in parallel") {
+      val graph = new HBaseGraph("localhost", port, "pscan")
+
+      val vertexes = for (i <- 1 to 20) yield graph.addVertex(null)
+      for (i <- 1 to 19) graph.addEdge(null, vertexes(i), vertexes(0), "e")
+      val ids = vertexes.map(v => v.getId.asInstanceOf[Array[Byte]]).sortWith(Bytes.compareTo(_, _) < 0)
+      testUtil.getHBaseAdmin.split(Bytes.toBytes("pscan"), ids(10))
+      var retries = 0
+      while (graph.handle.vtable.getStartEndKeys.getFirst.length < 2 && retries < 60) {
+        Thread.sleep(500)
+        retries += 1
+      }
+      assert(graph.handle.vtable.getStartEndKeys.getFirst.length == 2)
+
+      val seen = new java.util.concurrent.ConcurrentHashMap[String, Integer]
+      val counts = new java.util.concurrent.atomic.AtomicLong
+      graph.forEachVertex(4, new PartitionCallback[Vertex] {
+        def process(partition: Int, element: Vertex) {
+          seen.put(Bytes.toStringBinary(element.getId.asInstanceOf[Array[Byte]]), partition)
+        }
+
+        def partitionDone(partition: Int, count: Long) {
+          counts.addAndGet(count)
+        }
+      })
+      assert(seen.keySet.toSet == ids.map(Bytes.toStringBinary(_)).toSet)
+      assert(counts.get == 20)
+      assert(seen.values.toSet == Set(0, 1))
+
+      assert(graph.getVertices(4).iterator.map(v => Bytes.toStringBinary(v.getId.asInstanceOf[Array[Byte]])).toSet == ids.map(Bytes.toStringBinary(_)).toSet)
+      assert(graph.getEdges(4).iterator.size == 19)
+
+      val partial = graph.getVertices(2)
+      assert(partial.hasNext)
+      partial.next()
+      partial.close()
+      assert(!partial.hasNext)
+    }
+
+    it("should import vertexes and edges from HFiles") {
+      val conf = new Configuration(testUtil.getConfiguration)
+      conf.setInt(HFileImporter.IMPORT_CHUNK_SIZE, 10)
+      val graph = new HBaseGraph(conf, "import")
+      val index = graph.createAutomaticIndex("importvertexes", classOf[Vertex], Set("name", "age"))
+
+      val file = File.createTempFile("graphbase", ".csv")
+      file.deleteOnExit()
+      val writer = new PrintWriter(file, "UTF-8")
+      writer.println("# people")
+      writer.println("v,alice,name=Alice,city=Rome,age:int=42,zip=00100")
+      writer.println("v,bob,name=Bob")
+      writer.println("e,alice,bob,knows,since:long=2010,close:boolean=true")
+      writer.println("alice carol likes")
+      writer.println("bob carol")
+      writer.close()
+
+      val importer = new HFileImporter(graph, new Path("/import"))
+      importer.importFile(file)
+      assert(importer.getVertexCount == 2)
+      assert(importer.getEdgeCount == 3)
+      assert(importer.getFileCount > 1)
+
+      val alice = graph.getVertex(HFileImporter.getVertexId("alice"))
+      val bob = graph.getVertex(HFileImporter.getVertexId("bob"))
+      val carol = graph.getVertex(HFileImporter.getVertexId("carol"))
+      assert(alice != null && bob != null && carol != null)
+      assert(alice.getProperty("name") == "Alice")
+      assert(alice.getProperty("city") == "Rome")
+      assert(alice.getProperty("age") == 42)
+      assert(alice.getProperty("zip") == "00100")
+      assert(index.get("name", "Bob").iterator.map(v => toString(v.getId)).toList == List(toString(bob.getId)))
+      assert(index.get("age", 42).iterator.map(v => toString(v.getId)).toList == List(toString(alice.getId)))
+      assert(carol.getPropertyKeys.isEmpty)
+
+      val knows = alice.getOutEdges("knows").toList
+      assert(knows.size == 1)
+      assert(knows(0).getLabel == "knows")
+      assert(knows(0).getProperty("since") == 2010L)
+      assert(knows(0).getProperty("close") == true)
+      assert(knows(0).getInVertex.getId.asInstanceOf[Array[Byte]].sameElements(bob.getId.asInstanceOf[Array[Byte]]))
+      assert(graph.getEdge(knows(0).getId).getLabel == "knows")
+
+      assert(carol.getInEdges().map(_.getLabel).toSet == Set("likes", "edge"))
+      assert(carol.getInEdges("likes").toList.head.getOutVertex.getProperty("name") == "Alice")
+      assert(bob.getInEdges("knows").size == 1)
+      assert(graph.getVertices.iterator.size == 3)
+      assert(graph.getEdges.iterator.size == 3)
+    }
+
+    it("should repair half-written edges") {
+      val graph = new HBaseGraph("localhost", port, "repair")
+      val handle = graph.handle
+      val v1 = graph.addVertex(null)
+      val v2 = graph.addVertex(null)
+      val e1 = graph.addEdge(null, v1, v2, "complete")
+
+      //An edge whose in-vertex side was never written
+      val halfLocalId = Util.generateEdgeLocalId
+      val halfQualifier = Util.generateAdjacencyQualifier("half", halfLocalId)
+      val outPut = new Put(v1.getId.asInstanceOf[Array[Byte]])
+      outPut.add(Bytes.toBytes(handle.vnameOutEdges), halfQualifier, v2.getId.asInstanceOf[Array[Byte]])
+      outPut.add(Bytes.toBytes(handle.vnameEdgeProperties), Util.generateEdgePropertyId("label", halfLocalId), Bytes.toBytes("half"))
+      handle.vtable.put(outPut)
+
+      //An edge whose in-vertex doesn't exist
+      val lostLocalId = Util.generateEdgeLocalId
+      val lostQualifier = Util.generateAdjacencyQualifier("lost", lostLocalId)
+      val lostInVertexId = Util.generateVertexId
+      val lostPut = new Put(v1.getId.asInstanceOf[Array[Byte]])
+      lostPut.add(Bytes.toBytes(handle.vnameOutEdges), lostQualifier, lostInVertexId)
+      lostPut.add(Bytes.toBytes(handle.vnameEdgeProperties), Util.generateEdgePropertyId("label", lostLocalId), Bytes.toBytes("lost"))
+      lostPut.add(Bytes.toBytes(handle.vnameEdgeProperties), Util.generateEdgePropertyId("weight", lostLocalId), Util.typedObjectToBytes(Long.box(7)))
+      handle.vtable.put(lostPut)
+      val edgeIndex = graph.createAutomaticIndex("repairedges", classOf[Edge], Set("weight"))
+      edgeIndex.put("weight", Long.box(7), graph.buildOutEdge(v1.getId.asInstanceOf[Array[Byte]], lostQualifier, lostInVertexId))
+      assert(edgeIndex.get("weight", Long.box(7)).iterator.size == 1)
+
+      //An in-edge left behind by a removal
+      val danglingLocalId = Util.generateEdgeLocalId
+      val danglingId = Util.generateEdgeId(v2.getId.asInstanceOf[Array[Byte]], danglingLocalId)
+      val inPut = new Put(v1.getId.asInstanceOf[Array[Byte]])
+      inPut.add(Bytes.toBytes(handle.vnameInEdges), Util.generateAdjacencyQualifier("dangling", danglingLocalId), Util.generateInEdgeValue(danglingId, "dangling"))
+      handle.vtable.put(inPut)
+      graph.getElementCache.invalidateAll()
+
+      assert(HBaseGraphRepair.repairEdges(graph, 60000) == 0)
+      assert(HBaseGraphRepair.repairEdges(graph, 0) == 3)
+      assert(HBaseGraphRepair.repairEdges(graph, 0) == 0)
+
+      assert(v1.getOutEdges().map(_.getLabel).toSet == Set("complete", "half"))
+      assert(v2.getInEdges().map(_.getLabel).toSet == Set("complete", "half"))
+      assert(v1.getInEdges().isEmpty)
+      assert(graph.getEdge(Util.generateEdgeId(v1.getId.asInstanceOf[Array[Byte]], lostLocalId)) == null)
+      assert(edgeIndex.get("weight", Long.box(7)).iterator.isEmpty)
+      assert(graph.getEdge(e1.getId).getLabel == "complete")
+    }
+
+    it("should check the edge endpoints unless the vertexes are trusted") {
+      val graph = new HBaseGraph("localhost", port, "trust")
+      val conf = new Configuration(testUtil.getConfiguration)
+      conf.setBoolean(HBaseGraph.TRUST_CREATED_VERTEXES, true)
+      val trusting = new HBaseGraph(conf, "trust")
+
+      val v1 = graph.addVertex(null)
+      val v2 = graph.addVertex(null)
+      val e1 = graph.addEdge(null, v1, v2, "checked")
+      graph.removeEdge(e1)
+      assert(graph.getEdge(e1.getId) == null)
+      assert(v1.getOutEdges().isEmpty && v2.getInEdges().isEmpty)
+
+      val t1 = trusting.addVertex(null)
+      val t2 = trusting.addVertex(null)
+      graph.removeVertex(graph.getVertex(t2.getId))
+      intercept[RuntimeException] {
+        graph.addEdge(null, v1, t2, "checked")
+      }
+      //The trusting graph doesn't see that t2 has been removed by another instance
+      val e2 = trusting.addEdge(null, t1, t2, "trusted")
+      assert(trusting.getEdge(e2.getId).getLabel == "trusted")
+      trusting.removeEdge(e2)
+      assert(trusting.getEdge(e2.getId) == null)
+
+      trusting.removeVertex(t1)
+      intercept[RuntimeException] {
+        trusting.addEdge(null, t1, trusting.addVertex(null), "removed")
+      }
+    }
+
+    it("should remove an edge given by another Edge implementation") {
+      val graph = new HBaseGraph("localhost", port, "trust")
+      val v1 = graph.addVertex(null)
+      val v2 = graph.addVertex(null)
+      val e1 = graph.addEdge(null, v1, v2, "wrapped")
+      val wrapper = java.lang.reflect.Proxy.newProxyInstance(getClass.getClassLoader, Array[Class[_]](classOf[Edge]),
+        new java.lang.reflect.InvocationHandler {
+          def invoke(proxy: AnyRef, method: java.lang.reflect.Method, args: Array[AnyRef]) = method.invoke(e1, (if (args == null) Array[AnyRef]() else args): _*)
+        }).asInstanceOf[Edge]
+      graph.removeEdge(wrapper)
+      assert(graph.getEdge(e1.getId) == null)
+      assert(v1.getOutEdges().isEmpty && v2.getInEdges().isEmpty)
+    }
+
+    it("should spread salted and hashed vertex ids over the pre-split regions") {
+      for (ids <- List("salted", "hashed")) {
+        val conf = new Configuration(testUtil.getConfiguration)
+        conf.set(HBaseGraph.VERTEX_IDS, ids)
+        conf.setInt(HBaseGraph.VERTEX_REGIONS, 4)
+        val graph = new HBaseGraph(conf, ids)
+        assert(graph.handle.vtable.getStartEndKeys.getFirst.length == 4)
+
+        val vertexes = for (i <- 1 to 40) yield graph.addVertex(null)
+        val regions = vertexes.map(v => v.getId.asInstanceOf[Array[Byte]](0) & 0xC0).toSet
+        assert(regions.size > 1)
+        for (i <- 1 until vertexes.size) {
+          val edge = graph.addEdge(null, vertexes(i), vertexes(i - 1), "e")
+          val struct = Util.getEdgeIdStruct(edge.getId.asInstanceOf[Array[Byte]])
+          assert(Bytes.equals(struct.vertexId, vertexes(i).getId.asInstanceOf[Array[Byte]]))
+          assert(graph.getEdge(edge.getId).getInVertex.getId.asInstanceOf[Array[Byte]].sameElements(vertexes(i - 1).getId.asInstanceOf[Array[Byte]]))
+        }
+        assert(graph.getVertices.iterator.size == 40)
+      }
+      val salted = for (i <- 1 to 100) yield Util.generateSaltedVertexId(4)
+      assert(salted.map(Bytes.toStringBinary(_)).toSet.size == 100)
+      assert(salted.forall(id => id.length == 16 && Set(0, 64, 128, 192).contains(id(0) & 0xFF)))
+    }
+
+    it("should store the graph with the compact schema") {
+      val conf = new Configuration(testUtil.getConfiguration)
+      conf.set(HBaseGraph.SCHEMA, "compact")
+      val graph = new HBaseGraph(conf, "compact")
+      assert(graph.handle.vtable.getTableDescriptor.getFamiliesKeys.forall(_.length == 1))
+
+      val v1 = graph.addVertex(null)
+      val v2 = graph.addVertex(null)
+      v1.setProperty("name", "v1")
+      v1.setProperty("age", 30)
+      val e1 = graph.addEdge(null, v1, v2, "knows")
+      e1.setProperty("since", 2010)
+      assert(graph.getVertex(v1.getId).getProperty("name") == "v1")
+      assert(graph.getVertex(v1.getId).getPropertyKeys.toSet == Set("name", "age"))
+      assert(graph.getVertex(v2.getId).getProperty("name") == null)
+      assert(graph.getEdge(e1.getId).getLabel == "knows")
+      assert(graph.getEdge(e1.getId).getProperty("since") == 2010)
+      assert(graph.getEdge(e1.getId).getPropertyKeys.toSet == Set("since"))
+      assert(graph.getEdge(e1.getId).getProperty("unknown") == null)
+      assert(v1.removeProperty("age") == 30)
+      assert(v1.removeProperty("unknown") == null)
+
+      //A second instance reads the key ids assigned by the first one
+      val other = new HBaseGraph(conf, "compact")
+      assert(other.getVertex(v1.getId).getProperty("name") == "v1")
+      assert(other.getEdge(e1.getId).getProperty("since") == 2010)
+
+      //The keys without an id are cached, until this instance assigns one or for a second
+      assert(graph.getVertex(v1.getId).getProperty("color") == null)
+      v1.setProperty("color", "red")
+      assert(graph.getVertex(v1.getId).getProperty("color") == "red")
+      assert(other.getVertex(v1.getId).getProperty("nickname") == null)
+      v1.setProperty("nickname", "one")
+      Thread.sleep(1100)
+      assert(other.getVertex(v1.getId).getProperty("nickname") == "one")
+
+      val source = new HBaseGraph("localhost", port, "verbose")
+      source.createAutomaticIndex("verbosenames", classOf[Vertex], Set("name"))
+      val s1 = source.addVertex(null)
+      val s2 = source.addVertex(null)
+      s1.setProperty("name", "s1")
+      val se = source.addEdge(null, s1, s2, "knows")
+      se.setProperty("weight", 0.5)
+      assert(HBaseGraphMigrations.copyToCompactSchema(source, "verbosecompact") == 7)
+      val copy = new HBaseGraph("localhost", port, "verbosecompact")
+      assert(copy.handle.keys.isCompact)
+      assert(copy.getVertex(s1.getId).getProperty("name") == "s1")
+      assert(copy.getEdge(se.getId).getLabel == "knows")
+      assert(copy.getEdge(se.getId).getProperty("weight") == 0.5)
+      assert(copy.getVertex(s2.getId).getInEdges("knows").iterator.next.getId.asInstanceOf[Array[Byte]].sameElements(se.getId.asInstanceOf[Array[Byte]]))
+      val names = copy.getIndex("verbosenames", classOf[Vertex]).get("name", "s1")
+      assert(names.map(v => toString(v.getId)).toList == List(toString(s1.getId)))
+      names.close()
+
     it("should allow the usage of gremlin") {
       val graph: Graph = new HBaseGraph("localhost", port, "simple")
 
@@ -332,5 +855,7 @@ class GraphbaseTestSuite extends Spec with ShouldMatchers with BeforeAndAfterEac
     }
   }
 
+  def cachedRow(row: Array[Byte], size: Int) = new Result(Array(new KeyValue(row, Bytes.toBytes("p"), Bytes.toBytes("q"), new Array[Byte](size))))
+
   def toString(id: AnyRef): String = Bytes.toString(id.asInstanceOf[Array[Byte]]);
 }
\ No newline at end of file
@@ -32,6 +32,7 @@ class GraphBaseParentProject(info: ProjectInfo) extends ParentProject(info) {
   val scalatestVersion = "1.6.1"
   val junitVersion = "4.8.2"
   val junitInterfaceVersion = "0.6"
+  val jmhVersion = "1.21"
 
 
   def doNothing() = task {
@@ -86,6 +87,12 @@ class GraphBaseParentProject(info: ProjectInfo) extends ParentProject(info) {
     val blueprintsTest = "com.tinkerpop" % "blueprints-tests" % blueprintsTestVersion % "test" intransitive
     val gremlin = "com.tinkerpop" % "gremlin" % gremlinVersion % "test"
 
+    // Benchmark
+    val jmhCore = "org.openjdk.jmh" % "jmh-core" % jmhVersion
+    val jmhGenerator = "org.openjdk.jmh" % "jmh-generator-annprocess" % jmhVersion
+    val hadoopBenchmark = "org.apache.hadoop" % "hadoop-test" % hadoopVersion
+    val hbaseBenchmark = "org.apache.hbase" % "hbase" % hbaseVersion classifier "tests"
+
     // Compile & Test
     val ivyXML =
       <dependencies>
@@ -457,7 +464,32 @@ class GraphBaseParentProject(info: ProjectInfo) extends ParentProject(info) {
     }
   }
 
+  class BenchmarkProject(info: ProjectInfo) extends GraphbaseProject(info) {
+
+    // Dependencies
+    lazy val jmhCore = Dependencies.jmhCore
+    lazy val jmhGenerator = Dependencies.jmhGenerator
+    lazy val hadoopBenchmark = Dependencies.hadoopBenchmark
+    lazy val hbaseBenchmark = Dependencies.hbaseBenchmark
+
+    override def ivyXML = Dependencies.ivyXML
+
+    // JMH forks the benchmarks with the class path of the JVM running them
+    override def fork = forkRun
+
+    override def mainClass = Some("it.davidgreco.graphbase.blueprints.GraphbaseBenchmarks")
+
+    override def publishLocalAction = doNothing
+
+    override def deliverLocalAction = doNothing
+
+    override def publishAction = doNothing
+
+    override def deliverAction = doNothing
+  }
+
   // Subprojects
   lazy val blueprints = project("blueprints", "graphbase-blueprints", new BlueprintsProject(_))
+  lazy val benchmark = project("benchmark", "graphbase-benchmark", new BenchmarkProject(_), blueprints)
 
 }
\ No newline at end of file